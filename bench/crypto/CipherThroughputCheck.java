@@ -0,0 +1,140 @@
+package crypto;
+
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Multithreaded throughput check of the AES/ECB hot path: the ciphers kept by CipherCache against
+ * Cipher.getInstance at every operation, with 1, 2, 4... threads up to the requested number.
+ * Every operation encrypts and decrypts the payload and checks the result, the exit status is 1 on a mismatch.
+ * Not part of the library (bench source root). Usage: java crypto.CipherThroughputCheck [threads] [seconds per run] [payload byte]
+ * @author enrico guariento
+ *
+ */
+public final class CipherThroughputCheck {
+
+	private static final String AES_ECB = "AES/ECB/PKCS5Padding";
+
+	private CipherThroughputCheck() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int maxThreads = args.length>0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		long millis = args.length>1 ? Long.parseLong(args[1])*1000L : 3000L;
+		int payloadSize = args.length>2 ? Integer.parseInt(args[2]) : 256;
+
+		SecureRandom random = new SecureRandom();
+		byte[] keyBytes = new byte[16];
+		random.nextBytes(keyBytes);
+		Key key = new SecretKeySpec(keyBytes, "AES");
+		byte[] payload = new byte[payloadSize];
+		random.nextBytes(payload);
+
+		System.out.println("AES/ECB encrypt+decrypt of "+payloadSize+" byte, "+millis+" ms per run, up to "+maxThreads+" threads");
+		System.out.println("threads\tcached ops/s\tscaling\tgetInstance ops/s\tscaling");
+		double cachedBase = 0;
+		double uncachedBase = 0;
+		boolean ok = true;
+		for (int threads = 1; threads <= maxThreads; threads = threads<maxThreads ? Math.min(threads*2, maxThreads) : threads+1) {
+			Result cached = run(threads, millis, key, payload, true);
+			Result uncached = run(threads, millis, key, payload, false);
+			if(threads==1) {
+				cachedBase = cached.opsPerSecond();
+				uncachedBase = uncached.opsPerSecond();
+			}
+			System.out.println(threads+"\t"+format(cached.opsPerSecond())+"\t"+format(cached.opsPerSecond()/cachedBase)+"x\t"
+					+format(uncached.opsPerSecond())+"\t"+format(uncached.opsPerSecond()/uncachedBase)+"x");
+			ok = ok && cached.mismatches==0 && uncached.mismatches==0;
+		}
+		if(!ok) {
+			System.out.println("FAILED: decrypted data different from the original");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static Result run(int threads, final long millis, final Key key, final byte[] payload, final boolean cached) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+		try {
+			for (int i = 0; i < threads; i++) {
+				futures.add(executor.submit(new Callable<long[]>() {
+					@Override
+					public long[] call() throws Exception {
+						// warm up outside the measure
+						for (int j = 0; j < 1000; j++) {
+							operation(key, payload, cached);
+						}
+						start.await();
+						long ops = 0;
+						long mismatches = 0;
+						long end = System.currentTimeMillis()+millis;
+						while(System.currentTimeMillis()<end) {
+							for (int j = 0; j < 100; j++) {
+								if(!Arrays.equals(payload, operation(key, payload, cached))) {
+									mismatches++;
+								}
+							}
+							ops += 100;
+						}
+						CipherCache.clear();
+						return new long[]{ops, mismatches};
+					}
+				}));
+			}
+			long begin = System.nanoTime();
+			start.countDown();
+			Result toReturn = new Result();
+			for(Future<long[]> future : futures) {
+				long[] counts = future.get();
+				toReturn.ops += counts[0];
+				toReturn.mismatches += counts[1];
+			}
+			toReturn.nanos = System.nanoTime()-begin;
+			return toReturn;
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	private static byte[] operation(Key key, byte[] payload, boolean cached) throws Exception {
+		if(cached) {
+			byte[] encrypted = CipherCache.doFinal(AES_ECB, Cipher.ENCRYPT_MODE, key, payload);
+			return CipherCache.doFinal(AES_ECB, Cipher.DECRYPT_MODE, key, encrypted);
+		}
+		Cipher cipher = Cipher.getInstance(AES_ECB);
+		cipher.init(Cipher.ENCRYPT_MODE, key);
+		byte[] encrypted = cipher.doFinal(payload);
+		cipher = Cipher.getInstance(AES_ECB);
+		cipher.init(Cipher.DECRYPT_MODE, key);
+		return cipher.doFinal(encrypted);
+	}
+
+	private static String format(double value) {
+		return String.format("%.1f", value);
+	}
+
+	private static class Result {
+		private long ops;
+		private long mismatches;
+		private long nanos;
+
+		private double opsPerSecond() {
+			return ops*1000000000.0/nanos;
+		}
+	}
+
+}
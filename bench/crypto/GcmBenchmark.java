@@ -0,0 +1,105 @@
+package crypto;
+
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Throughput benchmark of AES-GCM (GcmEnvelope, with the versioned header) against AES/ECB (CipherCache)
+ * on a single thread, for several payload sizes. Every round trip is checked, the exit status is 1 on a mismatch.
+ * Needs a JCE provider with AES/GCM/NoPadding.
+ * Not part of the library (bench source root). Usage: java crypto.GcmBenchmark [seconds per run] [payload byte...]
+ * @author enrico guariento
+ *
+ */
+public final class GcmBenchmark {
+
+	private static final String AES_ECB = "AES/ECB/PKCS5Padding";
+	private static final String KEY_ID = "benchmark";
+
+	private GcmBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		long millis = args.length>0 ? Long.parseLong(args[0])*1000L : 2000L;
+		int[] sizes = new int[]{16, 256, 4*1024, 64*1024, 1024*1024};
+		if(args.length>1) {
+			sizes = new int[args.length-1];
+			for (int i = 1; i < args.length; i++) {
+				sizes[i-1] = Integer.parseInt(args[i]);
+			}
+		}
+
+		SecureRandom random = new SecureRandom();
+		byte[] keyBytes = new byte[16];
+		random.nextBytes(keyBytes);
+		Key key = new SecretKeySpec(keyBytes, "AES");
+
+		System.out.println("encrypt+decrypt, "+millis+" ms per run");
+		System.out.println("payload\tECB ops/s\tECB MB/s\tGCM ops/s\tGCM MB/s\tGCM/ECB");
+		boolean ok = true;
+		for(int size : sizes) {
+			byte[] payload = new byte[size];
+			random.nextBytes(payload);
+			Result ecb = run(millis, key, payload, false);
+			Result gcm = run(millis, key, payload, true);
+			System.out.println(size+"\t"+format(ecb.opsPerSecond())+"\t"+format(ecb.megabytesPerSecond(size))+"\t"
+					+format(gcm.opsPerSecond())+"\t"+format(gcm.megabytesPerSecond(size))+"\t"+format(gcm.opsPerSecond()/ecb.opsPerSecond())+"x");
+			ok = ok && ecb.mismatches==0 && gcm.mismatches==0;
+		}
+		if(!ok) {
+			System.out.println("FAILED: decrypted data different from the original");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static Result run(long millis, Key key, byte[] payload, boolean gcm) throws Exception {
+		// warm up outside the measure, about the same amount of data for every size
+		long warmup = Math.max(20, 4*1024*1024/Math.max(1, payload.length));
+		for (long i = 0; i < warmup; i++) {
+			operation(key, payload, gcm);
+		}
+		Result toReturn = new Result();
+		long begin = System.nanoTime();
+		long end = begin+millis*1000000L;
+		while(System.nanoTime()<end) {
+			if(!Arrays.equals(payload, operation(key, payload, gcm))) {
+				toReturn.mismatches++;
+			}
+			toReturn.ops++;
+		}
+		toReturn.nanos = System.nanoTime()-begin;
+		return toReturn;
+	}
+
+	private static byte[] operation(Key key, byte[] payload, boolean gcm) throws Exception {
+		if(gcm) {
+			return GcmEnvelope.decrypt(GcmEnvelope.encrypt(payload, KEY_ID, key), key);
+		}
+		byte[] encrypted = CipherCache.doFinal(AES_ECB, Cipher.ENCRYPT_MODE, key, payload);
+		return CipherCache.doFinal(AES_ECB, Cipher.DECRYPT_MODE, key, encrypted);
+	}
+
+	private static String format(double value) {
+		return String.format("%.1f", value);
+	}
+
+	private static class Result {
+		private long ops;
+		private long mismatches;
+		private long nanos;
+
+		private double opsPerSecond() {
+			return ops*1000000000.0/nanos;
+		}
+
+		private double megabytesPerSecond(int size) {
+			return opsPerSecond()*size/(1024*1024);
+		}
+	}
+
+}
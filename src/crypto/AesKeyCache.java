@@ -0,0 +1,175 @@
+package crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Bounded LRU cache for the AES keys derived by ToolCryptography.generateSecretKeyForAES
+ * The key of the cache is a SHA-256 digest of (salt, passphrase, iterations, key length) mixed with a random
+ * secret of the instance, so the passphrase is never kept in memory. The key material of the evicted,
+ * expired and cleared entries is overwritten with zeros
+ * @author enrico guariento
+ *
+ */
+public class AesKeyCache {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final byte[] secret = new byte[16];
+	private final LinkedHashMap<ByteBuffer, CachedKey> entries;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * @param maxEntries maximum number of keys kept. The least recently used is evicted first
+	 * @param ttlMillis time to live of every key in milliseconds. 0 means no expiration
+	 */
+	public AesKeyCache(int maxEntries, long ttlMillis) {
+		this.maxEntries = Math.max(1, maxEntries);
+		this.ttlMillis = ttlMillis;
+		new SecureRandom().nextBytes(secret);
+		// access order, so the eldest entry is the least recently used
+		this.entries = new LinkedHashMap<ByteBuffer, CachedKey>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, CachedKey> eldest) {
+				if(size()>AesKeyCache.this.maxEntries) {
+					evictions++;
+					eldest.getValue().destroy();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return a new key built from the cached material, null if not present or expired
+	 */
+	public SecretKeySpec get(byte[] salt, String passphrase, int iterations, int keyLength) {
+		ByteBuffer key = digest(salt, passphrase, iterations, keyLength);
+		synchronized (this) {
+			CachedKey cached = entries.get(key);
+			if(cached!=null && cached.isExpired(System.currentTimeMillis())) {
+				entries.remove(key);
+				cached.destroy();
+				evictions++;
+				cached = null;
+			}
+			if(cached==null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			// SecretKeySpec copies the array, the caller can't touch the cached material
+			return new SecretKeySpec(cached.material, "AES");
+		}
+	}
+
+	/**
+	 * Stores a copy of the key material and removes the expired keys
+	 */
+	public void put(byte[] salt, String passphrase, int iterations, int keyLength, SecretKeySpec secretKey) {
+		ByteBuffer key = digest(salt, passphrase, iterations, keyLength);
+		byte[] material = secretKey.getEncoded();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			Iterator<CachedKey> it = entries.values().iterator();
+			while(it.hasNext()) {
+				CachedKey cached = it.next();
+				if(cached.isExpired(now)) {
+					cached.destroy();
+					it.remove();
+					evictions++;
+				}
+			}
+			CachedKey old = entries.put(key, new CachedKey(material, ttlMillis>0 ? now+ttlMillis : Long.MAX_VALUE));
+			if(old!=null) {
+				old.destroy();
+			}
+		}
+	}
+
+	/**
+	 * Removes all the keys, overwriting their material
+	 */
+	public synchronized void clear() {
+		for(CachedKey cached : entries.values()) {
+			cached.destroy();
+		}
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "AesKeyCache(size="+entries.size()+", hits="+hits+", misses="+misses+", evictions="+evictions+")";
+	}
+
+	private ByteBuffer digest(byte[] salt, String passphrase, int iterations, int keyLength) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-256 is mandatory in every JRE
+			throw new IllegalStateException(e);
+		}
+		md.update(secret);
+		md.update(ByteBuffer.allocate(12).putInt(iterations).putInt(keyLength).putInt(salt.length).array());
+		md.update(salt);
+		ByteBuffer encoded = UTF8.encode(passphrase);
+		md.update(encoded);
+		// the encoder buffer holds the passphrase
+		if(encoded.hasArray()) {
+			Arrays.fill(encoded.array(), (byte)0);
+		}
+		return ByteBuffer.wrap(md.digest());
+	}
+
+	private static class CachedKey {
+		private final byte[] material;
+		private final long expiration;
+
+		private CachedKey(byte[] material, long expiration) {
+			this.material = material;
+			this.expiration = expiration;
+		}
+
+		private boolean isExpired(long now) {
+			return expiration<now;
+		}
+
+		private void destroy() {
+			Arrays.fill(material, (byte)0);
+		}
+	}
+
+}
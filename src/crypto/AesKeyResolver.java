@@ -0,0 +1,27 @@
+package crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+
+/**
+ * Resolves the AES keys by id, so the data encrypted with a key can be decrypted after a rotation.
+ * The id is written in the header of the GCM ciphertexts
+ * @author enrico guariento
+ *
+ */
+public interface AesKeyResolver {
+
+	/**
+	 * @return id of the key to use for new data. Maximum 255 byte in UTF-8
+	 * @throws GeneralSecurityException if the key can't be resolved
+	 */
+	String getCurrentKeyId() throws GeneralSecurityException;
+
+	/**
+	 * @param keyId id of the key, as returned by getCurrentKeyId when the data was encrypted
+	 * @return the key
+	 * @throws GeneralSecurityException if the key doesn't exist or can't be resolved
+	 */
+	Key getKey(String keyId) throws GeneralSecurityException;
+
+}
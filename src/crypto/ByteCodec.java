@@ -0,0 +1,386 @@
+package crypto;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Text encodings of the ciphertexts: hex, Base64 (standard alphabet, with padding) and the legacy
+ * space separated decimal format (ie: 73 -113 78 3). Every method runs in linear time and the variants with
+ * a target write into the array or buffer of the caller without intermediate strings
+ * @author enrico guariento
+ *
+ */
+public final class ByteCodec {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+	private static final int[] HEX_VALUES = new int[128];
+	private static final int[] BASE64_VALUES = new int[128];
+
+	static {
+		for (int i = 0; i < 128; i++) {
+			HEX_VALUES[i] = -1;
+			BASE64_VALUES[i] = -1;
+		}
+		for (int i = 0; i < 10; i++) {
+			HEX_VALUES['0'+i] = i;
+		}
+		for (int i = 0; i < 6; i++) {
+			HEX_VALUES['a'+i] = 10+i;
+			HEX_VALUES['A'+i] = 10+i;
+		}
+		for (int i = 0; i < BASE64.length; i++) {
+			BASE64_VALUES[BASE64[i]] = i;
+		}
+	}
+
+	private ByteCodec() {
+	}
+
+	/* ----- hex ----- */
+
+	/**
+	 * @return number of chars of the hex encoding of len bytes
+	 */
+	public static int hexLength(int len) {
+		return len*2;
+	}
+
+	/**
+	 * @return hex encoding, lowercase
+	 */
+	public static String encodeHex(byte[] src) {
+		char[] toReturn = new char[hexLength(src.length)];
+		encodeHex(src, 0, src.length, toReturn, 0);
+		return new String(toReturn);
+	}
+
+	/**
+	 * Writes the hex encoding (lowercase) of src[off, off+len) into dst from dstOff
+	 * @return number of chars written
+	 */
+	public static int encodeHex(byte[] src, int off, int len, char[] dst, int dstOff) {
+		int j = dstOff;
+		for (int i = off; i < off+len; i++) {
+			dst[j++] = HEX[(src[i]>>4) & 0x0F];
+			dst[j++] = HEX[src[i] & 0x0F];
+		}
+		return j-dstOff;
+	}
+
+	/**
+	 * Writes the hex encoding (lowercase, ASCII) of the remaining bytes of src into dst
+	 * @return number of bytes written
+	 */
+	public static int encodeHex(ByteBuffer src, ByteBuffer dst) {
+		int toReturn = hexLength(src.remaining());
+		while(src.hasRemaining()) {
+			byte b = src.get();
+			dst.put((byte)HEX[(b>>4) & 0x0F]);
+			dst.put((byte)HEX[b & 0x0F]);
+		}
+		return toReturn;
+	}
+
+	/**
+	 * @param src hex string, upper or lower case
+	 * @return decoded bytes
+	 * @throws IllegalArgumentException if the string is not valid hex
+	 */
+	public static byte[] decodeHex(CharSequence src) {
+		byte[] toReturn = new byte[src.length()/2];
+		decodeHex(src, 0, src.length(), toReturn, 0);
+		return toReturn;
+	}
+
+	/**
+	 * Decodes the hex chars src[off, off+len) into dst from dstOff
+	 * @return number of bytes written
+	 * @throws IllegalArgumentException if the chars are not valid hex
+	 */
+	public static int decodeHex(CharSequence src, int off, int len, byte[] dst, int dstOff) {
+		if(len%2!=0) {
+			throw new IllegalArgumentException("Odd length of hex string: "+len);
+		}
+		int j = dstOff;
+		for (int i = off; i < off+len; i += 2) {
+			dst[j++] = (byte)((hexValue(src.charAt(i))<<4) | hexValue(src.charAt(i+1)));
+		}
+		return j-dstOff;
+	}
+
+	/**
+	 * Decodes the remaining hex chars (ASCII) of src into dst
+	 * @return number of bytes written
+	 * @throws IllegalArgumentException if the chars are not valid hex
+	 */
+	public static int decodeHex(ByteBuffer src, ByteBuffer dst) {
+		if(src.remaining()%2!=0) {
+			throw new IllegalArgumentException("Odd length of hex string: "+src.remaining());
+		}
+		int toReturn = src.remaining()/2;
+		while(src.hasRemaining()) {
+			int high = hexValue((char)(src.get() & 0xFF));
+			dst.put((byte)((high<<4) | hexValue((char)(src.get() & 0xFF))));
+		}
+		return toReturn;
+	}
+
+	/* ----- Base64 ----- */
+
+	/**
+	 * @return number of chars of the Base64 encoding of len bytes, padding included
+	 */
+	public static int base64Length(int len) {
+		return (len+2)/3*4;
+	}
+
+	/**
+	 * @return Base64 encoding with padding
+	 */
+	public static String encodeBase64(byte[] src) {
+		char[] toReturn = new char[base64Length(src.length)];
+		encodeBase64(src, 0, src.length, toReturn, 0);
+		return new String(toReturn);
+	}
+
+	/**
+	 * Writes the Base64 encoding of src[off, off+len) into dst from dstOff
+	 * @return number of chars written
+	 */
+	public static int encodeBase64(byte[] src, int off, int len, char[] dst, int dstOff) {
+		int j = dstOff;
+		int end = off+len;
+		int i = off;
+		for (; i+2 < end; i += 3) {
+			int bits = (src[i] & 0xFF)<<16 | (src[i+1] & 0xFF)<<8 | (src[i+2] & 0xFF);
+			dst[j++] = BASE64[bits>>>18];
+			dst[j++] = BASE64[(bits>>>12) & 0x3F];
+			dst[j++] = BASE64[(bits>>>6) & 0x3F];
+			dst[j++] = BASE64[bits & 0x3F];
+		}
+		if(i<end) {
+			int bits = (src[i] & 0xFF)<<16 | (i+1<end ? (src[i+1] & 0xFF)<<8 : 0);
+			dst[j++] = BASE64[bits>>>18];
+			dst[j++] = BASE64[(bits>>>12) & 0x3F];
+			dst[j++] = i+1<end ? BASE64[(bits>>>6) & 0x3F] : '=';
+			dst[j++] = '=';
+		}
+		return j-dstOff;
+	}
+
+	/**
+	 * Writes the Base64 encoding (ASCII) of the remaining bytes of src into dst
+	 * @return number of bytes written
+	 */
+	public static int encodeBase64(ByteBuffer src, ByteBuffer dst) {
+		int toReturn = base64Length(src.remaining());
+		while(src.remaining()>=3) {
+			int bits = (src.get() & 0xFF)<<16 | (src.get() & 0xFF)<<8 | (src.get() & 0xFF);
+			dst.put((byte)BASE64[bits>>>18]);
+			dst.put((byte)BASE64[(bits>>>12) & 0x3F]);
+			dst.put((byte)BASE64[(bits>>>6) & 0x3F]);
+			dst.put((byte)BASE64[bits & 0x3F]);
+		}
+		if(src.hasRemaining()) {
+			boolean two = src.remaining()==2;
+			int bits = (src.get() & 0xFF)<<16 | (two ? (src.get() & 0xFF)<<8 : 0);
+			dst.put((byte)BASE64[bits>>>18]);
+			dst.put((byte)BASE64[(bits>>>12) & 0x3F]);
+			dst.put(two ? (byte)BASE64[(bits>>>6) & 0x3F] : (byte)'=');
+			dst.put((byte)'=');
+		}
+		return toReturn;
+	}
+
+	/**
+	 * @param src Base64 chars, padding included
+	 * @return number of bytes encoded in src[off, off+len)
+	 */
+	public static int decodedBase64Length(CharSequence src, int off, int len) {
+		if(len%4!=0) {
+			throw new IllegalArgumentException("Length of Base64 string not multiple of 4: "+len);
+		}
+		if(len==0) {
+			return 0;
+		}
+		int padding = src.charAt(off+len-1)=='=' ? (src.charAt(off+len-2)=='=' ? 2 : 1) : 0;
+		return len/4*3-padding;
+	}
+
+	/**
+	 * @param src Base64 string with padding, without line breaks
+	 * @return decoded bytes
+	 * @throws IllegalArgumentException if the string is not valid Base64
+	 */
+	public static byte[] decodeBase64(CharSequence src) {
+		byte[] toReturn = new byte[decodedBase64Length(src, 0, src.length())];
+		decodeBase64(src, 0, src.length(), toReturn, 0);
+		return toReturn;
+	}
+
+	/**
+	 * Decodes the Base64 chars src[off, off+len) (with padding, without line breaks) into dst from dstOff
+	 * @return number of bytes written
+	 * @throws IllegalArgumentException if the chars are not valid Base64
+	 */
+	public static int decodeBase64(CharSequence src, int off, int len, byte[] dst, int dstOff) {
+		if(len%4!=0) {
+			throw new IllegalArgumentException("Length of Base64 string not multiple of 4: "+len);
+		}
+		int j = dstOff;
+		for (int i = off; i < off+len; i += 4) {
+			int a = base64Value(src.charAt(i));
+			int b = base64Value(src.charAt(i+1));
+			char c = src.charAt(i+2);
+			char d = src.charAt(i+3);
+			dst[j++] = (byte)(a<<2 | b>>4);
+			if(c=='=') {
+				checkPadding(d, i+4, off+len);
+				break;
+			}
+			int cv = base64Value(c);
+			dst[j++] = (byte)(b<<4 | cv>>2);
+			if(d=='=') {
+				checkPadding(d, i+4, off+len);
+				break;
+			}
+			dst[j++] = (byte)(cv<<6 | base64Value(d));
+		}
+		return j-dstOff;
+	}
+
+	/**
+	 * Decodes the remaining Base64 chars (ASCII, with padding, without line breaks) of src into dst
+	 * @return number of bytes written
+	 * @throws IllegalArgumentException if the chars are not valid Base64
+	 */
+	public static int decodeBase64(ByteBuffer src, ByteBuffer dst) {
+		if(src.remaining()%4!=0) {
+			throw new IllegalArgumentException("Length of Base64 string not multiple of 4: "+src.remaining());
+		}
+		int start = dst.position();
+		while(src.hasRemaining()) {
+			int a = base64Value((char)(src.get() & 0xFF));
+			int b = base64Value((char)(src.get() & 0xFF));
+			char c = (char)(src.get() & 0xFF);
+			char d = (char)(src.get() & 0xFF);
+			dst.put((byte)(a<<2 | b>>4));
+			if(c=='=') {
+				checkPadding(d, src.position(), src.limit());
+				break;
+			}
+			int cv = base64Value(c);
+			dst.put((byte)(b<<4 | cv>>2));
+			if(d=='=') {
+				checkPadding(d, src.position(), src.limit());
+				break;
+			}
+			dst.put((byte)(cv<<6 | base64Value(d)));
+		}
+		return dst.position()-start;
+	}
+
+	/* ----- legacy decimal format ----- */
+
+	/**
+	 * @return the bytes as signed decimals separated by a space, ie: 73 -113 78 3. Empty string for an empty array
+	 */
+	public static String encodeDecimal(byte[] src) {
+		StringBuilder toReturn = new StringBuilder(src.length*4);
+		encodeDecimal(src, toReturn);
+		return toReturn.toString();
+	}
+
+	/**
+	 * Appends the bytes as signed decimals separated by a space, ie: 73 -113 78 3
+	 */
+	public static void encodeDecimal(byte[] src, StringBuilder dst) {
+		for (int i = 0; i < src.length; i++) {
+			if(i>0) {
+				dst.append(' ');
+			}
+			dst.append((int)src[i]);
+		}
+	}
+
+	/**
+	 * @param src decimals separated by spaces, ie: 73 -113 78 3. Every value is truncated to a byte
+	 * @return decoded bytes, null if src is null or contains no value
+	 * @throws NumberFormatException if a value is not a number
+	 */
+	public static byte[] decodeDecimal(CharSequence src) {
+		if(src==null) {
+			return null;
+		}
+		int len = src.length();
+		int count = 0;
+		boolean inValue = false;
+		for (int i = 0; i < len; i++) {
+			boolean space = src.charAt(i)==' ';
+			if(!space && !inValue) {
+				count++;
+			}
+			inValue = !space;
+		}
+		if(count==0) {
+			return null;
+		}
+		byte[] toReturn = new byte[count];
+		int j = 0;
+		int i = 0;
+		while(i<len) {
+			while(i<len && src.charAt(i)==' ') {
+				i++;
+			}
+			if(i>=len) {
+				break;
+			}
+			int start = i;
+			boolean negative = false;
+			if(src.charAt(i)=='-' || src.charAt(i)=='+') {
+				negative = src.charAt(i)=='-';
+				i++;
+			}
+			long value = 0;
+			int digits = 0;
+			while(i<len && src.charAt(i)!=' ') {
+				int digit = src.charAt(i)-'0';
+				value = value*10+digit;
+				// same limits of Integer.parseInt, used by the previous implementation
+				if(digit<0 || digit>9 || value>(negative ? 2147483648L : Integer.MAX_VALUE)) {
+					throw new NumberFormatException("Not a number at position "+start+": "+src.subSequence(start, Math.min(len, start+12)));
+				}
+				digits++;
+				i++;
+			}
+			if(digits==0) {
+				throw new NumberFormatException("Not a number at position "+start);
+			}
+			toReturn[j++] = (byte)(negative ? -value : value);
+		}
+		return toReturn;
+	}
+
+	private static int hexValue(char c) {
+		int toReturn = c<128 ? HEX_VALUES[c] : -1;
+		if(toReturn<0) {
+			throw new IllegalArgumentException("Not a hex char: "+c);
+		}
+		return toReturn;
+	}
+
+	private static int base64Value(char c) {
+		int toReturn = c<128 ? BASE64_VALUES[c] : -1;
+		if(toReturn<0) {
+			throw new IllegalArgumentException("Not a Base64 char: "+c);
+		}
+		return toReturn;
+	}
+
+	private static void checkPadding(char d, int next, int end) {
+		if(d!='=' || next!=end) {
+			throw new IllegalArgumentException("Base64 padding not at the end");
+		}
+	}
+
+}
@@ -0,0 +1,115 @@
+package crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+
+/**
+ * Keeps one initialized Cipher for every thread and transformation, so the hot path doesn't call
+ * Cipher.getInstance (provider lookup and allocation) at every operation.
+ * The cipher is initialized again only when the key or the mode change.
+ * Without parameters only for transformations without IV (ie: AES/ECB/PKCS5Padding): doFinal brings them back to the initial state
+ * @author enrico guariento
+ *
+ */
+final class CipherCache {
+
+	private static final ThreadLocal<Map<String, CachedCipher>> CIPHERS = new ThreadLocal<Map<String, CachedCipher>>() {
+		@Override
+		protected Map<String, CachedCipher> initialValue() {
+			return new HashMap<String, CachedCipher>();
+		}
+	};
+
+	private CipherCache() {
+	}
+
+	/**
+	 * Encrypts or decrypts the whole input with the cipher of the current thread
+	 * @param transformation ie: AES/ECB/PKCS5Padding
+	 * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+	 * @param key key to use
+	 * @param input data to encrypt or decrypt
+	 * @return result of doFinal
+	 * @throws GeneralSecurityException if the operation fails. The cipher is discarded
+	 */
+	static byte[] doFinal(String transformation, int mode, Key key, byte[] input) throws GeneralSecurityException {
+		Cipher cipher = get(transformation, mode, key);
+		try {
+			return cipher.doFinal(input);
+		} catch (GeneralSecurityException e) {
+			// the state of the cipher is undefined after an error
+			discard(transformation);
+			throw e;
+		} catch (RuntimeException e) {
+			discard(transformation);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the cipher of the current thread, initialized with the key and the mode.
+	 * It must be brought back to the initial state (doFinal) before the next call
+	 */
+	static Cipher get(String transformation, int mode, Key key) throws GeneralSecurityException {
+		Map<String, CachedCipher> ciphers = CIPHERS.get();
+		CachedCipher cached = ciphers.get(transformation);
+		if(cached==null) {
+			cached = new CachedCipher(Cipher.getInstance(transformation));
+			ciphers.put(transformation, cached);
+		}
+		if(cached.mode!=mode || cached.key==null || (cached.key!=key && !cached.key.equals(key))) {
+			cached.key = null;
+			cached.cipher.init(mode, key);
+			cached.key = key;
+			cached.mode = mode;
+		}
+		return cached.cipher;
+	}
+
+	/**
+	 * @return the cipher of the current thread, always initialized again with the parameters (ie: the nonce of GCM)
+	 */
+	static Cipher get(String transformation, int mode, Key key, AlgorithmParameterSpec params) throws GeneralSecurityException {
+		Map<String, CachedCipher> ciphers = CIPHERS.get();
+		CachedCipher cached = ciphers.get(transformation);
+		if(cached==null) {
+			cached = new CachedCipher(Cipher.getInstance(transformation));
+			ciphers.put(transformation, cached);
+		}
+		cached.key = null;
+		cached.cipher.init(mode, key, params);
+		cached.key = key;
+		cached.mode = mode;
+		return cached.cipher;
+	}
+
+	/**
+	 * Discards the cipher of the current thread, to be called when an operation on it fails
+	 */
+	static void discard(String transformation) {
+		CIPHERS.get().remove(transformation);
+	}
+
+	/**
+	 * Removes the ciphers, and the keys they reference, of the current thread
+	 */
+	static void clear() {
+		CIPHERS.remove();
+	}
+
+	private static class CachedCipher {
+		private final Cipher cipher;
+		private Key key;
+		private int mode;
+
+		private CachedCipher(Cipher cipher) {
+			this.cipher = cipher;
+		}
+	}
+
+}
@@ -0,0 +1,135 @@
+package crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+/**
+ * Pushes a stream or a channel through an initialized cipher using fixed buffers, so the memory used
+ * doesn't depend on the size of the data. The buffers are allocated once for every thread
+ * @author enrico guariento
+ *
+ */
+final class CipherStreams {
+
+	private static final int BUFFER_SIZE = 64*1024;
+	// room for the padding added by doFinal
+	private static final int OUTPUT_SIZE = BUFFER_SIZE+64;
+
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	private CipherStreams() {
+	}
+
+	/**
+	 * Reads the input until the end and writes the result. The streams are not closed
+	 * @return number of bytes written
+	 */
+	static long transform(Cipher cipher, InputStream in, OutputStream out) throws IOException, GeneralSecurityException {
+		Scratch scratch = SCRATCH.get();
+		byte[] input = scratch.getArray();
+		byte[] output = scratch.getOutputArray();
+		long toReturn = 0;
+		int read;
+		while((read = in.read(input))!=-1) {
+			int written = cipher.update(input, 0, read, output, 0);
+			out.write(output, 0, written);
+			toReturn += written;
+		}
+		int written = cipher.doFinal(output, 0);
+		out.write(output, 0, written);
+		toReturn += written;
+		out.flush();
+		return toReturn;
+	}
+
+	/**
+	 * Reads the channel until the end and writes the result through direct buffers. The channels are not closed
+	 * @return number of bytes written
+	 */
+	static long transform(Cipher cipher, ReadableByteChannel in, WritableByteChannel out) throws IOException, GeneralSecurityException {
+		Scratch scratch = SCRATCH.get();
+		ByteBuffer input = scratch.getBuffer();
+		ByteBuffer output = scratch.getOutputBuffer();
+		input.clear();
+		long toReturn = 0;
+		while(in.read(input)!=-1) {
+			input.flip();
+			output.clear();
+			cipher.update(input, output);
+			toReturn += writeFully(output, out);
+			input.clear();
+		}
+		input.flip();
+		output.clear();
+		cipher.doFinal(input, output);
+		toReturn += writeFully(output, out);
+		return toReturn;
+	}
+
+	/**
+	 * Releases the buffers of the current thread
+	 */
+	static void clear() {
+		SCRATCH.remove();
+	}
+
+	private static int writeFully(ByteBuffer output, WritableByteChannel out) throws IOException {
+		output.flip();
+		int toReturn = output.remaining();
+		while(output.hasRemaining()) {
+			out.write(output);
+		}
+		return toReturn;
+	}
+
+	/**
+	 * Buffers of a thread, created at the first use
+	 */
+	private static class Scratch {
+		private byte[] array;
+		private byte[] outputArray;
+		private ByteBuffer buffer;
+		private ByteBuffer outputBuffer;
+
+		private byte[] getArray() {
+			if(array==null) {
+				array = new byte[BUFFER_SIZE];
+			}
+			return array;
+		}
+
+		private byte[] getOutputArray() {
+			if(outputArray==null) {
+				outputArray = new byte[OUTPUT_SIZE];
+			}
+			return outputArray;
+		}
+
+		private ByteBuffer getBuffer() {
+			if(buffer==null) {
+				buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			}
+			return buffer;
+		}
+
+		private ByteBuffer getOutputBuffer() {
+			if(outputBuffer==null) {
+				outputBuffer = ByteBuffer.allocateDirect(OUTPUT_SIZE);
+			}
+			return outputBuffer;
+		}
+	}
+
+}
@@ -0,0 +1,45 @@
+package crypto;
+
+/**
+ * Result of a single item of the bulk methods of ToolCryptography
+ * @author enrico guariento
+ *
+ * @param <T> type of the result (byte[] for encryption, String for decryption)
+ */
+public class CryptoBulkResult<T> {
+
+	private final T value;
+	private final Exception error;
+
+	public CryptoBulkResult(T value, Exception error) {
+		this.value = value;
+		this.error = error;
+	}
+
+	/**
+	 * @return encrypted or decrypted item. null if error
+	 */
+	public T getValue() {
+		return value;
+	}
+
+	/**
+	 * @return error of the item, null if success
+	 */
+	public Exception getError() {
+		return error;
+	}
+
+	/**
+	 * @return true if the item has been processed
+	 */
+	public boolean isSuccess() {
+		return error==null;
+	}
+
+	@Override
+	public String toString() {
+		return "CryptoBulkResult(success="+isSuccess()+(error!=null ? ", error="+error : "")+")";
+	}
+
+}
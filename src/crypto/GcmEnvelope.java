@@ -0,0 +1,107 @@
+package crypto;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Versioned format of the AES-GCM ciphertexts:
+ * magic (4 byte "AESG"), version (1 byte), key id length (1 byte), key id (UTF-8), nonce (12 byte), ciphertext, tag (16 byte).
+ * The header is authenticated together with the ciphertext.
+ * The magic and the version make a legacy ECB ciphertext look like a GCM one with probability 2^-40
+ * @author enrico guariento
+ *
+ */
+final class GcmEnvelope {
+
+	static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	private static final byte[] MAGIC = {'A', 'E', 'S', 'G'};
+	private static final byte VERSION = 1;
+	private static final int NONCE_LENGTH = 12;
+	private static final int TAG_LENGTH = 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private GcmEnvelope() {
+	}
+
+	/**
+	 * @return true if the data starts with the header of this format
+	 */
+	static boolean isGcm(byte[] data) {
+		if(data==null || data.length<MAGIC.length+2+NONCE_LENGTH+TAG_LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < MAGIC.length; i++) {
+			if(data[i]!=MAGIC[i]) {
+				return false;
+			}
+		}
+		return data[MAGIC.length]==VERSION && headerLength(data)+TAG_LENGTH<=data.length;
+	}
+
+	/**
+	 * @return id of the key written in the header
+	 */
+	static String getKeyId(byte[] data) {
+		return new String(data, MAGIC.length+2, data[MAGIC.length+1] & 0xFF, UTF8);
+	}
+
+	/**
+	 * Encrypts with a random nonce
+	 */
+	static byte[] encrypt(byte[] plain, String keyId, Key key) throws GeneralSecurityException {
+		byte[] id = keyId.getBytes(UTF8);
+		if(id.length>255) {
+			throw new GeneralSecurityException("Key id longer than 255 byte: "+keyId);
+		}
+		int headerLength = MAGIC.length+2+id.length+NONCE_LENGTH;
+		byte[] toReturn = new byte[headerLength+plain.length+TAG_LENGTH];
+		System.arraycopy(MAGIC, 0, toReturn, 0, MAGIC.length);
+		toReturn[MAGIC.length] = VERSION;
+		toReturn[MAGIC.length+1] = (byte)id.length;
+		System.arraycopy(id, 0, toReturn, MAGIC.length+2, id.length);
+		byte[] nonce = new byte[NONCE_LENGTH];
+		RANDOM.nextBytes(nonce);
+		System.arraycopy(nonce, 0, toReturn, headerLength-NONCE_LENGTH, NONCE_LENGTH);
+		Cipher cipher = CipherCache.get(TRANSFORMATION, Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH*8, nonce));
+		try {
+			cipher.updateAAD(toReturn, 0, headerLength);
+			cipher.doFinal(plain, 0, plain.length, toReturn, headerLength);
+		} catch (GeneralSecurityException e) {
+			CipherCache.discard(TRANSFORMATION);
+			throw e;
+		}
+		return toReturn;
+	}
+
+	/**
+	 * Decrypts and verifies the tag
+	 * @throws javax.crypto.AEADBadTagException if the data or the header have been modified, or the key is wrong
+	 */
+	static byte[] decrypt(byte[] data, Key key) throws GeneralSecurityException {
+		if(!isGcm(data)) {
+			throw new GeneralSecurityException("Not an AES-GCM ciphertext");
+		}
+		int headerLength = headerLength(data);
+		GCMParameterSpec spec = new GCMParameterSpec(TAG_LENGTH*8, Arrays.copyOfRange(data, headerLength-NONCE_LENGTH, headerLength));
+		Cipher cipher = CipherCache.get(TRANSFORMATION, Cipher.DECRYPT_MODE, key, spec);
+		try {
+			cipher.updateAAD(data, 0, headerLength);
+			return cipher.doFinal(data, headerLength, data.length-headerLength);
+		} catch (GeneralSecurityException e) {
+			CipherCache.discard(TRANSFORMATION);
+			throw e;
+		}
+	}
+
+	private static int headerLength(byte[] data) {
+		return MAGIC.length+2+(data[MAGIC.length+1] & 0xFF)+NONCE_LENGTH;
+	}
+
+}
@@ -0,0 +1,29 @@
+package crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Map;
+
+/**
+ * Source of the keys of a keyset. WasKeySetProvider reads them from websphere,
+ * an in memory implementation can be used where websphere is not running
+ * @author enrico guariento
+ *
+ */
+public interface KeySetProvider {
+
+	/**
+	 * @param keysetName name of the keyset
+	 * @return the key to use for new data
+	 * @throws GeneralSecurityException if the keyset can't be read
+	 */
+	Key getLatestKey(String keysetName) throws GeneralSecurityException;
+
+	/**
+	 * @param keysetName name of the keyset
+	 * @return all the keys of the keyset by alias, the latest included
+	 * @throws GeneralSecurityException if the keyset can't be read
+	 */
+	Map<String, Key> getAllKeys(String keysetName) throws GeneralSecurityException;
+
+}
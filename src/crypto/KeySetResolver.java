@@ -0,0 +1,199 @@
+package crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Caches the keys of a keyset and reads them again from the provider every refresh interval.
+ * The keys seen before a rotation are kept, so the GCM data naming them in its header can still be decrypted
+ * also if the provider doesn't return them anymore. The id of a key is its alias inside the keyset
+ * @author enrico guariento
+ *
+ */
+public class KeySetResolver implements AesKeyResolver {
+
+	// minimum time between two refreshes caused by an unknown key id
+	private static final long MISS_REFRESH_MILLIS = 1000L;
+
+	private final KeySetProvider provider;
+	private final String keysetName;
+	private final long refreshIntervalMillis;
+	private final Logger log;
+	private volatile Snapshot snapshot;
+	private long refreshes = 0;
+	private long refreshErrors = 0;
+
+	/**
+	 * @param provider source of the keys, ie: new WasKeySetProvider()
+	 * @param keysetName name of the keyset
+	 * @param refreshIntervalMillis time after which the keys are read again from the provider
+	 * @param log logger. If null the logger of this class is used
+	 */
+	public KeySetResolver(KeySetProvider provider, String keysetName, long refreshIntervalMillis, Logger log) {
+		this.provider = provider;
+		this.keysetName = keysetName;
+		this.refreshIntervalMillis = refreshIntervalMillis;
+		this.log = log!=null ? log : Logger.getLogger(KeySetResolver.class);
+	}
+
+	public String getKeysetName() {
+		return keysetName;
+	}
+
+	@Override
+	public String getCurrentKeyId() throws GeneralSecurityException {
+		return getSnapshot().latestId;
+	}
+
+	@Override
+	public Key getKey(String keyId) throws GeneralSecurityException {
+		Snapshot current = getSnapshot();
+		Key toReturn = current.keys.get(keyId);
+		if(toReturn==null && System.currentTimeMillis()-current.loadTime>=MISS_REFRESH_MILLIS) {
+			// the key may have been added after the last refresh
+			toReturn = refreshAfterMiss().keys.get(keyId);
+		}
+		if(toReturn==null) {
+			throw new GeneralSecurityException("Key "+keyId+" not found in keyset "+keysetName);
+		}
+		return toReturn;
+	}
+
+	/**
+	 * @return the latest key of the keyset
+	 */
+	public Key getLatestKey() throws GeneralSecurityException {
+		return getSnapshot().latest;
+	}
+
+	/**
+	 * @return all the keys known, the latest first and then the others in the order they were seen
+	 */
+	public List<Key> getKeyHistory() throws GeneralSecurityException {
+		Snapshot current = getSnapshot();
+		List<Key> toReturn = new ArrayList<Key>();
+		toReturn.add(current.latest);
+		for(Key key : current.keys.values()) {
+			if(key!=current.latest) {
+				toReturn.add(key);
+			}
+		}
+		return Collections.unmodifiableList(toReturn);
+	}
+
+	/**
+	 * Reads the keys from the provider now. If the provider fails the keys already known are kept
+	 * @throws GeneralSecurityException if the provider fails and the keys have never been read
+	 */
+	public synchronized void forceRefresh() throws GeneralSecurityException {
+		refresh();
+	}
+
+	public synchronized long getRefreshes() {
+		return refreshes;
+	}
+
+	public synchronized long getRefreshErrors() {
+		return refreshErrors;
+	}
+
+	@Override
+	public String toString() {
+		Snapshot current = snapshot;
+		return "KeySetResolver(keyset="+keysetName+", currentKeyId="+(current!=null ? current.latestId : null)
+				+", keys="+(current!=null ? current.keys.size() : 0)+", refreshes="+getRefreshes()+", refreshErrors="+getRefreshErrors()+")";
+	}
+
+	private Snapshot getSnapshot() throws GeneralSecurityException {
+		Snapshot current = snapshot;
+		if(current!=null && System.currentTimeMillis()<current.nextRefresh) {
+			return current;
+		}
+		return refreshIfNeeded();
+	}
+
+	private synchronized Snapshot refreshIfNeeded() throws GeneralSecurityException {
+		// another thread may have refreshed while waiting
+		Snapshot current = snapshot;
+		if(current!=null && System.currentTimeMillis()<current.nextRefresh) {
+			return current;
+		}
+		return refresh();
+	}
+
+	private synchronized Snapshot refreshAfterMiss() throws GeneralSecurityException {
+		Snapshot current = snapshot;
+		if(current!=null && System.currentTimeMillis()-current.loadTime<MISS_REFRESH_MILLIS) {
+			return current;
+		}
+		return refresh();
+	}
+
+	private synchronized Snapshot refresh() throws GeneralSecurityException {
+		Snapshot current = snapshot;
+		long now = System.currentTimeMillis();
+		long nextRefresh = now+refreshIntervalMillis;
+		try {
+			Key latest = provider.getLatestKey(keysetName);
+			Map<String, Key> all = provider.getAllKeys(keysetName);
+			// keys already known first, so the order is the order of appearance
+			LinkedHashMap<String, Key> keys = current!=null ? new LinkedHashMap<String, Key>(current.keys) : new LinkedHashMap<String, Key>();
+			keys.putAll(all);
+			String latestId = null;
+			for(Map.Entry<String, Key> entry : all.entrySet()) {
+				if(sameKey(latest, entry.getValue())) {
+					latestId = entry.getKey();
+					break;
+				}
+			}
+			if(latestId==null) {
+				throw new GeneralSecurityException("Latest key of keyset "+keysetName+" not found among its keys");
+			}
+			refreshes++;
+			if(current!=null && !latestId.equals(current.latestId)) {
+				log.info("[KeySetResolver] Keyset "+keysetName+" rotated from "+current.latestId+" to "+latestId);
+			}
+			snapshot = new Snapshot(latestId, keys.get(latestId), keys, now, nextRefresh);
+		} catch (GeneralSecurityException e) {
+			refreshErrors++;
+			if(current==null) {
+				throw e;
+			}
+			log.error("[KeySetResolver] Refresh of keyset "+keysetName+" failed, using the keys already read", e);
+			snapshot = new Snapshot(current.latestId, current.latest, current.keys, now, nextRefresh);
+		}
+		return snapshot;
+	}
+
+	static boolean sameKey(Key a, Key b) {
+		return a==b || MessageDigest.isEqual(a.getEncoded(), b.getEncoded());
+	}
+
+	/**
+	 * Keys read at a refresh. Never modified after creation
+	 */
+	private static class Snapshot {
+		private final String latestId;
+		private final Key latest;
+		private final Map<String, Key> keys;
+		private final long loadTime;
+		private final long nextRefresh;
+
+		private Snapshot(String latestId, Key latest, Map<String, Key> keys, long loadTime, long nextRefresh) {
+			this.latestId = latestId;
+			this.latest = latest;
+			this.keys = keys;
+			this.loadTime = loadTime;
+			this.nextRefresh = nextRefresh;
+		}
+	}
+
+}
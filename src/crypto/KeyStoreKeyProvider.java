@@ -0,0 +1,220 @@
+package crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Loads every keystore file once and keeps the keys already read.
+ * The file is checked at most once every check interval: if its modification time or size changed
+ * it is read again, and the keystore is parsed again only if its SHA-256 changed
+ * @author enrico guariento
+ *
+ */
+public class KeyStoreKeyProvider {
+
+	private final ConcurrentMap<String, LoadedKeyStore> keystores = new ConcurrentHashMap<String, LoadedKeyStore>();
+	private final Logger log;
+	private volatile long checkIntervalMillis;
+	private long loads = 0;
+
+	/**
+	 * @param checkIntervalMillis minimum time between two checks of the same file. 0 checks it at every call
+	 * @param log logger. If null the logger of this class is used
+	 */
+	public KeyStoreKeyProvider(long checkIntervalMillis, Logger log) {
+		this.checkIntervalMillis = checkIntervalMillis;
+		this.log = log!=null ? log : Logger.getLogger(KeyStoreKeyProvider.class);
+	}
+
+	/**
+	 * @param keystorePath path of the keystore file. ie: C:\\MyKeyStore.jceks
+	 * @param keystorePassword Password of the keystore in clear, used also for the key
+	 * @param keystoreType kind of the keystore (JCEKS,JKS, ecc)
+	 * @param keyAlias Name of the key inside the keystore
+	 * @return the key
+	 * @throws GeneralSecurityException if the keystore can't be parsed or the alias doesn't exist
+	 * @throws IOException if the file can't be read
+	 */
+	public Key getKey(String keystorePath, String keystorePassword, String keystoreType, String keyAlias) throws GeneralSecurityException, IOException {
+		File file = new File(keystorePath);
+		String id = file.getAbsolutePath()+"|"+keystoreType;
+		byte[] passwordDigest = digestPassword(keystorePassword);
+		LoadedKeyStore loaded = keystores.get(id);
+		if(loaded==null || !MessageDigest.isEqual(loaded.passwordDigest, passwordDigest) || isChanged(loaded, file)) {
+			loaded = reload(id, file, keystorePassword, passwordDigest, keystoreType);
+		}
+		Key toReturn = loaded.keys.get(keyAlias);
+		if(toReturn==null) {
+			char[] passchars = passwordChars(keystorePassword);
+			try {
+				toReturn = loaded.keystore.getKey(keyAlias, passchars);
+			}
+			finally {
+				Arrays.fill(passchars, '\0');
+			}
+			if(toReturn==null) {
+				throw new GeneralSecurityException("Alias "+keyAlias+" not found in "+keystorePath);
+			}
+			loaded.keys.put(keyAlias, toReturn);
+		}
+		return toReturn;
+	}
+
+	/**
+	 * Forgets a keystore, it will be read at the next request
+	 * @param keystorePath path of the keystore file
+	 */
+	public void invalidate(String keystorePath) {
+		String prefix = new File(keystorePath).getAbsolutePath()+"|";
+		for(String id : keystores.keySet()) {
+			if(id.startsWith(prefix)) {
+				keystores.remove(id);
+			}
+		}
+	}
+
+	/**
+	 * Forgets all the keystores
+	 */
+	public void clear() {
+		keystores.clear();
+	}
+
+	public long getCheckIntervalMillis() {
+		return checkIntervalMillis;
+	}
+
+	public void setCheckIntervalMillis(long checkIntervalMillis) {
+		this.checkIntervalMillis = checkIntervalMillis;
+	}
+
+	/**
+	 * @return number of times a keystore file has been parsed
+	 */
+	public synchronized long getLoads() {
+		return loads;
+	}
+
+	@Override
+	public String toString() {
+		return "KeyStoreKeyProvider(keystores="+keystores.size()+", loads="+getLoads()+", checkIntervalMillis="+checkIntervalMillis+")";
+	}
+
+	/**
+	 * Same conversion used by the keystore methods of ToolCryptography
+	 */
+	static char[] passwordChars(String keystorePassword) {
+		byte[] password = keystorePassword.getBytes();
+		char[] passchars = new char[password.length];
+		for (int i = 0; i < password.length; i++) {
+			passchars[i] = (char)(password[i] & 0xFF);
+		}
+		Arrays.fill(password, (byte)0);
+		return passchars;
+	}
+
+	private static byte[] digestPassword(String keystorePassword) throws GeneralSecurityException {
+		byte[] password = keystorePassword.getBytes();
+		try {
+			return digest(password);
+		}
+		finally {
+			Arrays.fill(password, (byte)0);
+		}
+	}
+
+	private boolean isChanged(LoadedKeyStore loaded, File file) {
+		long now = System.currentTimeMillis();
+		if(now-loaded.lastCheck<checkIntervalMillis) {
+			return false;
+		}
+		loaded.lastCheck = now;
+		return file.lastModified()!=loaded.lastModified || file.length()!=loaded.length;
+	}
+
+	private synchronized LoadedKeyStore reload(String id, File file, String keystorePassword, byte[] passwordDigest, String keystoreType) throws GeneralSecurityException, IOException {
+		LoadedKeyStore current = keystores.get(id);
+		// another thread may have reloaded it while waiting
+		if(current!=null && MessageDigest.isEqual(current.passwordDigest, passwordDigest) && current.lastCheck>=System.currentTimeMillis()-checkIntervalMillis
+				&& file.lastModified()==current.lastModified && file.length()==current.length) {
+			return current;
+		}
+		long lastModified = file.lastModified();
+		byte[] content = readFile(file);
+		byte[] contentDigest = digest(content);
+		LoadedKeyStore toReturn;
+		if(current!=null && MessageDigest.isEqual(current.passwordDigest, passwordDigest) && MessageDigest.isEqual(current.contentDigest, contentDigest)) {
+			// touched but not changed: the keys already read are still valid
+			toReturn = new LoadedKeyStore(current.keystore, current.keys, contentDigest, passwordDigest, lastModified, content.length);
+		}
+		else {
+			KeyStore ks = KeyStore.getInstance(keystoreType);
+			char[] passchars = passwordChars(keystorePassword);
+			try {
+				ks.load(new ByteArrayInputStream(content), passchars);
+			}
+			finally {
+				Arrays.fill(passchars, '\0');
+			}
+			loads++;
+			log.info("[KeyStoreKeyProvider] Keystore loaded: "+file.getAbsolutePath());
+			toReturn = new LoadedKeyStore(ks, new ConcurrentHashMap<String, Key>(), contentDigest, passwordDigest, lastModified, content.length);
+		}
+		keystores.put(id, toReturn);
+		return toReturn;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] toReturn = new byte[(int)file.length()];
+			int read = 0;
+			while(read<toReturn.length) {
+				int n = in.read(toReturn, read, toReturn.length-read);
+				if(n<0) {
+					return Arrays.copyOf(toReturn, read);
+				}
+				read += n;
+			}
+			return toReturn;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private static byte[] digest(byte[] content) throws GeneralSecurityException {
+		return MessageDigest.getInstance("SHA-256").digest(content);
+	}
+
+	private static class LoadedKeyStore {
+		private final KeyStore keystore;
+		private final ConcurrentMap<String, Key> keys;
+		private final byte[] contentDigest;
+		private final byte[] passwordDigest;
+		private final long lastModified;
+		private final long length;
+		private volatile long lastCheck = System.currentTimeMillis();
+
+		private LoadedKeyStore(KeyStore keystore, ConcurrentMap<String, Key> keys, byte[] contentDigest, byte[] passwordDigest, long lastModified, long length) {
+			this.keystore = keystore;
+			this.keys = keys;
+			this.contentDigest = contentDigest;
+			this.passwordDigest = passwordDigest;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+
+}
@@ -1,8 +1,31 @@
 package crypto;
 
 import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.Key;
 import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
@@ -12,8 +35,6 @@ import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.log4j.Logger;
 
-import com.ibm.websphere.crypto.KeySetHelper;
-
 /**
  * This class contains methods for cryptography
  * You can pass a logger as parameter when initializing, otherwise system.out will be used
@@ -24,11 +45,26 @@ public class ToolCryptography {
 
 	private static Logger log = Logger.getLogger(ToolCryptography.class);
 	private static ToolCryptography instance;
+	private static final String AES_ECB = "AES/ECB/PKCS5Padding";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BULK_MIN_CHUNK = 64;
+	private static final int AES_KEY_ITERATIONS = 30000;
+	private static final int AES_KEY_LENGTH = 128;
+	private static final long KEYSTORE_CHECK_INTERVAL_MILLIS = 1000L;
+	private volatile AesKeyCache keyCache;
+	private final KeyStoreKeyProvider keyStoreKeyProvider;
+	private static final long KEYSET_REFRESH_INTERVAL_MILLIS = 5*60*1000L;
+	private final ConcurrentMap<String, KeySetResolver> keySetResolvers = new ConcurrentHashMap<String, KeySetResolver>();
+	private final ConcurrentMap<String, String> legacyKeyIds = new ConcurrentHashMap<String, String>();
+	private volatile KeySetProvider keySetProvider = new WasKeySetProvider();
+	private volatile long keySetRefreshIntervalMillis = KEYSET_REFRESH_INTERVAL_MILLIS;
+	private ExecutorService workerExecutor;
 	
 	private ToolCryptography(Logger logger) {
 		if(logger!=null) {
 			log = logger;
 		}
+		keyStoreKeyProvider = new KeyStoreKeyProvider(KEYSTORE_CHECK_INTERVAL_MILLIS, log);
 		log.info("[ToolCryptography] ToolCryptography initialized");
 	}
 	
@@ -43,6 +79,102 @@ public class ToolCryptography {
 		return instance;
 	}
 	
+	/**
+	 * Changes the source of the keysets used by the WASKeySet methods, ie: an in memory provider where websphere is not running.
+	 * The keys already cached are discarded
+	 * @param provider source of the keysets. The default is WasKeySetProvider
+	 * @param refreshIntervalMillis time after which the keys of a keyset are read again. The default is 5 minutes
+	 */
+	public void setKeySetProvider(KeySetProvider provider, long refreshIntervalMillis) {
+		keySetProvider = provider;
+		keySetRefreshIntervalMillis = refreshIntervalMillis;
+		keySetResolvers.clear();
+		log.info("[ToolCryptography] Keyset provider "+provider.getClass().getName()+", refreshIntervalMillis="+refreshIntervalMillis);
+	}
+	
+	/**
+	 * @param keysetName name of the keyset inside websphere
+	 * @return the cached resolver of the keyset used by the WASKeySet methods
+	 */
+	public KeySetResolver getKeySetResolver(String keysetName) {
+		KeySetResolver toReturn = keySetResolvers.get(keysetName);
+		if(toReturn==null) {
+			KeySetResolver created = new KeySetResolver(keySetProvider, keysetName, keySetRefreshIntervalMillis, log);
+			toReturn = keySetResolvers.putIfAbsent(keysetName, created);
+			if(toReturn==null) {
+				toReturn = created;
+			}
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Sets the key used to decrypt the existing AES/ECB data of a keyset, to be called before rotating its keys.
+	 * The ECB data doesn't say which key encrypted it and only one key can be named for every keyset:
+	 * ECB data written with keys of different rotations can't all be decrypted, re-encrypt it (GCM) before rotating again.
+	 * The new data is always written with GCM and doesn't depend on this key
+	 * @param keysetName name of the keyset inside websphere
+	 * @param keyId alias of the key inside the keyset. null to use the latest key (the default)
+	 */
+	public void setLegacyKeyId(String keysetName, String keyId) {
+		if(keyId==null) {
+			legacyKeyIds.remove(keysetName);
+		}
+		else {
+			legacyKeyIds.put(keysetName, keyId);
+		}
+		log.info("[ToolCryptography] Legacy ECB key of keyset "+keysetName+": "+(keyId!=null ? keyId : "latest"));
+	}
+	
+	/**
+	 * Keeps the keys derived by generateSecretKeyForAES, so PBKDF2 runs once for every salt and passphrase
+	 * @param maxEntries maximum number of keys kept. The least recently used is evicted first
+	 * @param ttlMillis time to live of every key in milliseconds. 0 means no expiration
+	 */
+	public void enableKeyCache(int maxEntries, long ttlMillis) {
+		AesKeyCache old = keyCache;
+		keyCache = new AesKeyCache(maxEntries, ttlMillis);
+		if(old!=null) {
+			old.clear();
+		}
+		log.info("[ToolCryptography] Key cache enabled: maxEntries="+maxEntries+", ttlMillis="+ttlMillis);
+	}
+	
+	/**
+	 * Disables the key cache, overwriting the cached keys
+	 */
+	public void disableKeyCache() {
+		AesKeyCache old = keyCache;
+		keyCache = null;
+		if(old!=null) {
+			old.clear();
+		}
+	}
+	
+	/**
+	 * @return the key cache, null if disabled
+	 */
+	public AesKeyCache getKeyCache() {
+		return keyCache;
+	}
+	
+	/**
+	 * @return the provider used by the keystore methods that take the path of the file.
+	 * Use it to change the check interval or to force the reload of a keystore
+	 */
+	public KeyStoreKeyProvider getKeyStoreKeyProvider() {
+		return keyStoreKeyProvider;
+	}
+	
+	/**
+	 * The AES methods keep an initialized cipher for every thread. Call it before a pooled thread
+	 * is given back to a container that may undeploy the application, or to release the keys referenced
+	 */
+	public static void clearThreadCiphers() {
+		CipherCache.clear();
+		CipherStreams.clear();
+	}
+	
 	/**
 	 * Generate a key for AES 128bit. Algorithm used: PBKDF2WithHmacSHA1
 	 * @param sale Random string used to create the key. If null, a default string will be used
@@ -50,6 +182,19 @@ public class ToolCryptography {
 	 * @return secret key. null if error
 	 */
 	public SecretKeySpec generateSecretKeyForAES(byte[] sale, String fraseChiave) {
+		return generateSecretKeyForAES(sale, fraseChiave, AES_KEY_ITERATIONS, AES_KEY_LENGTH);
+	}
+	
+	/**
+	 * Generate a key for AES. Algorithm used: PBKDF2WithHmacSHA1
+	 * If the key cache is enabled the key is derived only the first time
+	 * @param sale Random string used to create the key. If null, a default string will be used
+	 * @param fraseChiave Random string used to create the key. If null, a default string will be used
+	 * @param iterations iterations of PBKDF2
+	 * @param keyLength length of the key in bit (128, 192 or 256)
+	 * @return secret key. null if error
+	 */
+	public SecretKeySpec generateSecretKeyForAES(byte[] sale, String fraseChiave, int iterations, int keyLength) {
 		try {
 			if(sale==null || sale.length==0) {
 				sale = "Questo e' il salt associato alla chiave".getBytes();
@@ -57,9 +202,24 @@ public class ToolCryptography {
 			if(fraseChiave==null || fraseChiave.length()==0) {
 				fraseChiave = "Nel mezzo del cammin di nostra vita mi ritrovai per una selva oscura che la diritta via era smarrita.";
 			}
+			AesKeyCache cache = keyCache;
+			if(cache!=null) {
+				SecretKeySpec cached = cache.get(sale, fraseChiave, iterations, keyLength);
+				if(cached!=null) {
+					return cached;
+				}
+			}
 			SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-			SecretKey tmp = factory.generateSecret(new PBEKeySpec(fraseChiave.toCharArray(), sale, 30000, 128));
-			return new SecretKeySpec(tmp.getEncoded(), "AES");
+			PBEKeySpec spec = new PBEKeySpec(fraseChiave.toCharArray(), sale, iterations, keyLength);
+			SecretKey tmp = factory.generateSecret(spec);
+			spec.clearPassword();
+			byte[] encoded = tmp.getEncoded();
+			SecretKeySpec toReturn = new SecretKeySpec(encoded, "AES");
+			Arrays.fill(encoded, (byte)0);
+			if(cache!=null) {
+				cache.put(sale, fraseChiave, iterations, keyLength, toReturn);
+			}
+			return toReturn;
 		}
 		catch(Exception e) {
 			log.error("[ToolCryptography] *** EXCEPTION ***",e);
@@ -68,23 +228,47 @@ public class ToolCryptography {
 	}
 	
 	/**
-	 * The cypher is with AES so the key must be 16 byte
+	 * Derives a key in background and puts it in the key cache, so the first request doesn't wait for PBKDF2.
+	 * Call it at startup, after enableKeyCache
+	 * @param sale Random string used to create the key. If null, a default string will be used
+	 * @param fraseChiave Random string used to create the key. If null, a default string will be used
+	 * @return the future key. Its value is null if error
+	 */
+	public Future<SecretKeySpec> prewarmSecretKeyForAES(byte[] sale, String fraseChiave) {
+		return prewarmSecretKeyForAES(sale, fraseChiave, AES_KEY_ITERATIONS, AES_KEY_LENGTH);
+	}
+	
+	/**
+	 * Derives a key in background and puts it in the key cache, so the first request doesn't wait for PBKDF2.
+	 * Call it at startup, after enableKeyCache
+	 * @param sale Random string used to create the key. If null, a default string will be used
+	 * @param fraseChiave Random string used to create the key. If null, a default string will be used
+	 * @param iterations iterations of PBKDF2
+	 * @param keyLength length of the key in bit (128, 192 or 256)
+	 * @return the future key. Its value is null if error
+	 */
+	public Future<SecretKeySpec> prewarmSecretKeyForAES(final byte[] sale, final String fraseChiave, final int iterations, final int keyLength) {
+		if(keyCache==null) {
+			log.warn("[ToolCryptography] Key cache disabled, the prewarmed key will not be kept");
+		}
+		return getWorkerExecutor().submit(new Callable<SecretKeySpec>() {
+			@Override
+			public SecretKeySpec call() {
+				return generateSecretKeyForAES(sale, fraseChiave, iterations, keyLength);
+			}
+		});
+	}
+	
+	/**
+	 * The cypher is with AES so the key must be 16 byte. The output is the same of encryptStringWithWASKeySetGCM:
+	 * the alias of the key is written in the ciphertext, so decryptByteArrayWithWASKeySetAES finds it also after a rotation.
+	 * AES/ECB is no longer written, it is only decrypted for the existing data
 	 * @param stringToEncrypt String to crypt
 	 * @param keysetName name of the keyset inside websphere
 	 * @return byte array of the crypted text. null if exception
 	 */
 	public static byte[] encryptStringWithWASKeySetAES(String stringToEncrypt, String keysetName) {
-		try {
-			KeySetHelper ksh = KeySetHelper.getInstance();
-			Key encryptionKey = (Key) ksh.getLatestKeyForKeySet(keysetName);
-			log.debug("[ToolCryptography] String to crypt: "+stringToEncrypt+" with key of "+encryptionKey.getEncoded().length+" byte");
-			Cipher aes = Cipher.getInstance("AES/ECB/PKCS5Padding");
-			aes.init(Cipher.ENCRYPT_MODE, encryptionKey);
-			return aes.doFinal(stringToEncrypt.getBytes());
-		} catch (Exception e) {
-			log.error("[ToolCryptography] *** EXCEPTION ***",e);
-		}
-		return null;
+		return getInstance().encryptStringWithWASKeySetGCM(stringToEncrypt, keysetName);
 	}
 	
 	/**
@@ -110,9 +294,7 @@ public class ToolCryptography {
 			Key encryptionKey = ks.getKey(keyAlias, passchars);
 			
 			log.debug("[ToolCryptography] String to crypt: "+stringToEncrypt+" with key of "+encryptionKey.getEncoded().length+" byte");
-			Cipher aes = Cipher.getInstance("AES/ECB/PKCS5Padding");
-			aes.init(Cipher.ENCRYPT_MODE, encryptionKey);
-			return aes.doFinal(stringToEncrypt.getBytes());
+			return CipherCache.doFinal(AES_ECB, Cipher.ENCRYPT_MODE, encryptionKey, stringToEncrypt.getBytes());
 		} catch (Exception e) {
 			log.error("[ToolCryptography] *** EXCEPTION ***",e);
 		}
@@ -120,19 +302,46 @@ public class ToolCryptography {
 	}
 	
 	/**
-	 * decrypt byte array with AES 128 bit
+	 * The cypher is with AES so the key must be 16 byte.
+	 * The keystore is read only the first time and when the file changes
+	 * @param stringToEncrypt String to crypt
+	 * @param keystorePath path of the keystore. ie: C:\\MyKeyStore.jceks
+	 * @param keystorePassword Password of the keystore in clear
+	 * @param keystoreType kind of the keystore (JCEKS,JKS, ecc)
+	 * @param keyAlias Name of the key to use inside the keystore
+	 * @return byte array of the crypted text. null if exception
+	 */
+	public byte[] encryptStringWithKeyStoreFileAES(String stringToEncrypt, String keystorePath, String keystorePassword, String keystoreType, String keyAlias) {
+		try {
+			Key encryptionKey = keyStoreKeyProvider.getKey(keystorePath, keystorePassword, keystoreType, keyAlias);
+			log.debug("[ToolCryptography] String to crypt: "+stringToEncrypt+" with key of "+encryptionKey.getEncoded().length+" byte");
+			return CipherCache.doFinal(AES_ECB, Cipher.ENCRYPT_MODE, encryptionKey, stringToEncrypt.getBytes());
+		} catch (Exception e) {
+			log.error("[ToolCryptography] *** EXCEPTION ***",e);
+		}
+		return null;
+	}
+	
+	/**
+	 * decrypt byte array with AES 128 bit. Accepts also the output of encryptStringWithWASKeySetGCM,
+	 * decrypted with the key named in its header also after a rotation.
+	 * The existing AES/ECB data is decrypted only with the key set by setLegacyKeyId, or with the latest key if none is set:
+	 * after a rotation without setLegacyKeyId, or with ECB data of several rotations, the decryption fails
 	 * @param arrayToDecrypt byte array to decrypt
 	 * @param keysetName name of the keyset inside websphere
 	 * @return decrypted string. null if exception
 	 */
 	public String decryptByteArrayWithWASKeySetAES(byte[] arrayToDecrypt, String keysetName) {
+		KeySetResolver keys = getKeySetResolver(keysetName);
+		if(GcmEnvelope.isGcm(arrayToDecrypt)) {
+			return decryptByteArrayAES(arrayToDecrypt, keys);
+		}
 		try {
-			KeySetHelper ksh = KeySetHelper.getInstance();
-			Key encryptionKey = (Key) ksh.getLatestKeyForKeySet(keysetName);
+			// the ECB data doesn't say which key was used, and a wrong key can give a valid padding: no attempts with other keys
+			String legacyKeyId = legacyKeyIds.get(keysetName);
+			Key encryptionKey = legacyKeyId!=null ? keys.getKey(legacyKeyId) : keys.getLatestKey();
 			log.debug("[ToolCryptography] Decrypting array of "+arrayToDecrypt.length+" byte with key of "+encryptionKey.getEncoded().length+" byte");
-			Cipher aes = Cipher.getInstance("AES/ECB/PKCS5Padding");
-			aes.init(Cipher.DECRYPT_MODE, encryptionKey);
-			return new String(aes.doFinal(arrayToDecrypt));
+			return new String(CipherCache.doFinal(AES_ECB, Cipher.DECRYPT_MODE, encryptionKey, arrayToDecrypt));
 		} catch (Exception e) {
 			log.error("[ToolCryptography] *** EXCEPTION ***",e);
 		}
@@ -162,9 +371,7 @@ public class ToolCryptography {
 			Key encryptionKey = ks.getKey(keyAlias, passchars);
 			
 			log.debug("[ToolCryptography] Decrypting string of "+arrayToDecrypt.length+" byte with key of "+encryptionKey.getEncoded().length+" byte");
-			Cipher aes = Cipher.getInstance("AES/ECB/PKCS5Padding");
-			aes.init(Cipher.DECRYPT_MODE, encryptionKey);
-			return new String(aes.doFinal(arrayToDecrypt));
+			return new String(CipherCache.doFinal(AES_ECB, Cipher.DECRYPT_MODE, encryptionKey, arrayToDecrypt));
 		} catch (Exception e) {
 			log.error("[ToolCryptography] *** ECCEZIONE ***",e);
 		}
@@ -172,38 +379,456 @@ public class ToolCryptography {
 	}
 	
 	/**
-	 * 
-	 * @param bytes ie: 73 -113 78 3 -5 56 30 -89 97 61 122 -123 -46 -22 89 61
-	 * @return byte array of the corresponding characters
+	 * decrypt byte array with AES 128 bit.
+	 * The keystore is read only the first time and when the file changes
+	 * @param arrayToDecrypt byte array to decrypt
+	 * @param keystorePath path of the keystore. ie: C:\\MyKeyStore.jceks
+	 * @param keystorePassword Password of the keystore in clear
+	 * @param keystoreType kind of the keystore (JCEKS,JKS, ecc)
+	 * @param keyAlias Name of the key to use inside the keystore
+	 * @return decrypted string. null if exception
 	 */
-	public byte[] stringOfBytesToByteArray(String bytes) {
-		byte[] toReturn = null;
-		if(bytes!=null && bytes.length()>0) {
-			String[] temp = bytes.split(" ");
-			if(temp!=null && temp.length>0) {
-				toReturn = new byte[temp.length];
-				for (int i = 0; i < temp.length; i++) {
-					toReturn[i] = (byte) Integer.parseInt(temp[i]);
+	public String decryptByteArrayWithKeyStoreFileAES(byte[] arrayToDecrypt, String keystorePath, String keystorePassword, String keystoreType, String keyAlias) {
+		try {
+			Key encryptionKey = keyStoreKeyProvider.getKey(keystorePath, keystorePassword, keystoreType, keyAlias);
+			log.debug("[ToolCryptography] Decrypting string of "+arrayToDecrypt.length+" byte with key of "+encryptionKey.getEncoded().length+" byte");
+			return new String(CipherCache.doFinal(AES_ECB, Cipher.DECRYPT_MODE, encryptionKey, arrayToDecrypt));
+		} catch (Exception e) {
+			log.error("[ToolCryptography] *** EXCEPTION ***",e);
+		}
+		return null;
+	}
+	
+	/**
+	 * Encrypts with AES-GCM using the latest key of a websphere keyset. The alias of the key is written
+	 * in the ciphertext, so it can be decrypted with decryptByteArrayWithWASKeySetAES also after a rotation
+	 * @param stringToEncrypt String to crypt, encoded in UTF-8
+	 * @param keysetName name of the keyset inside websphere
+	 * @return byte array of the crypted text. null if exception
+	 */
+	public byte[] encryptStringWithWASKeySetGCM(String stringToEncrypt, String keysetName) {
+		return encryptStringGcmAES(stringToEncrypt, getKeySetResolver(keysetName));
+	}
+	
+	/**
+	 * Encrypts with AES-GCM (random nonce, 128 bit tag) using the current key of the resolver.
+	 * Needs a JCE provider with AES/GCM/NoPadding (IBMJCE, SunJCE from Java 8)
+	 * @param stringToEncrypt String to crypt, encoded in UTF-8
+	 * @param keys resolver of the keys
+	 * @return byte array of the crypted text, with the header (version, key id, nonce). null if exception
+	 */
+	public byte[] encryptStringGcmAES(String stringToEncrypt, AesKeyResolver keys) {
+		return encryptByteArrayGcmAES(stringToEncrypt.getBytes(UTF8), keys);
+	}
+	
+	/**
+	 * Encrypts with AES-GCM (random nonce, 128 bit tag) using the current key of the resolver.
+	 * Needs a JCE provider with AES/GCM/NoPadding (IBMJCE, SunJCE from Java 8)
+	 * @param arrayToEncrypt data to crypt
+	 * @param keys resolver of the keys
+	 * @return byte array of the crypted data, with the header (version, key id, nonce). null if exception
+	 */
+	public byte[] encryptByteArrayGcmAES(byte[] arrayToEncrypt, AesKeyResolver keys) {
+		try {
+			String keyId = keys.getCurrentKeyId();
+			log.debug("[ToolCryptography] Encrypting array of "+arrayToEncrypt.length+" byte with AES-GCM, key "+keyId);
+			return GcmEnvelope.encrypt(arrayToEncrypt, keyId, keys.getKey(keyId));
+		} catch (Exception e) {
+			log.error("[ToolCryptography] *** EXCEPTION ***",e);
+		}
+		return null;
+	}
+	
+	/**
+	 * Decrypts the output of encryptStringGcmAES with the key named in its header.
+	 * Data without the header is decrypted as legacy AES/ECB with the current key of the resolver
+	 * @param arrayToDecrypt byte array to decrypt
+	 * @param keys resolver of the keys
+	 * @return decrypted string (UTF-8 for GCM, platform charset for ECB like the other methods). null if exception
+	 * or if the GCM data has been modified
+	 */
+	public String decryptByteArrayAES(byte[] arrayToDecrypt, AesKeyResolver keys) {
+		byte[] toReturn = decryptToByteArrayAES(arrayToDecrypt, keys);
+		if(toReturn==null) {
+			return null;
+		}
+		return GcmEnvelope.isGcm(arrayToDecrypt) ? new String(toReturn, UTF8) : new String(toReturn);
+	}
+	
+	/**
+	 * Decrypts the output of encryptByteArrayGcmAES with the key named in its header.
+	 * Data without the header is decrypted as legacy AES/ECB with the current key of the resolver
+	 * @param arrayToDecrypt byte array to decrypt
+	 * @param keys resolver of the keys
+	 * @return decrypted data. null if exception or if the GCM data has been modified
+	 */
+	public byte[] decryptToByteArrayAES(byte[] arrayToDecrypt, AesKeyResolver keys) {
+		try {
+			if(GcmEnvelope.isGcm(arrayToDecrypt)) {
+				String keyId = GcmEnvelope.getKeyId(arrayToDecrypt);
+				log.debug("[ToolCryptography] Decrypting array of "+arrayToDecrypt.length+" byte with AES-GCM, key "+keyId);
+				return GcmEnvelope.decrypt(arrayToDecrypt, keys.getKey(keyId));
+			}
+			log.debug("[ToolCryptography] Decrypting array of "+arrayToDecrypt.length+" byte with AES-ECB");
+			return CipherCache.doFinal(AES_ECB, Cipher.DECRYPT_MODE, keys.getKey(keys.getCurrentKeyId()), arrayToDecrypt);
+		} catch (Exception e) {
+			log.error("[ToolCryptography] *** EXCEPTION ***",e);
+		}
+		return null;
+	}
+	
+	/**
+	 * Encrypts many strings with AES/ECB in parallel. The key is resolved once, every worker thread uses its own cipher
+	 * @param stringsToEncrypt strings to crypt
+	 * @param keystorePath path of the keystore. ie: C:\\MyKeyStore.jceks
+	 * @param keystorePassword Password of the keystore in clear
+	 * @param keystoreType kind of the keystore (JCEKS,JKS, ecc)
+	 * @param keyAlias Name of the key to use inside the keystore
+	 * @param executor executor of the work. If null a pool with a thread for every processor is used
+	 * @return one result for every string, in the same order. null if the key can't be read
+	 */
+	public List<CryptoBulkResult<byte[]>> encryptStringsWithKeyStoreFileAES(List<String> stringsToEncrypt, String keystorePath, String keystorePassword, String keystoreType, String keyAlias, ExecutorService executor) {
+		try {
+			Key encryptionKey = keyStoreKeyProvider.getKey(keystorePath, keystorePassword, keystoreType, keyAlias);
+			return encryptStringsAES(stringsToEncrypt, encryptionKey, executor);
+		} catch (Exception e) {
+			log.error("[ToolCryptography] *** EXCEPTION ***",e);
+		}
+		return null;
+	}
+	
+	/**
+	 * Encrypts many strings with AES/ECB in parallel, every worker thread uses its own cipher
+	 * @param stringsToEncrypt strings to crypt
+	 * @param key AES key
+	 * @param executor executor of the work. If null a pool with a thread for every processor is used
+	 * @return one result for every string, in the same order. An item that fails doesn't stop the others
+	 */
+	public List<CryptoBulkResult<byte[]>> encryptStringsAES(List<String> stringsToEncrypt, final Key key, ExecutorService executor) {
+		return runBulk(stringsToEncrypt, new BulkOperation<String, byte[]>() {
+			@Override
+			public byte[] apply(String item) throws Exception {
+				return CipherCache.doFinal(AES_ECB, Cipher.ENCRYPT_MODE, key, item.getBytes());
+			}
+		}, executor);
+	}
+	
+	/**
+	 * Decrypts many byte arrays with AES/ECB in parallel, every worker thread uses its own cipher
+	 * @param arraysToDecrypt byte arrays to decrypt
+	 * @param key AES key
+	 * @param executor executor of the work. If null a pool with a thread for every processor is used
+	 * @return one result for every array, in the same order. An item that fails doesn't stop the others
+	 */
+	public List<CryptoBulkResult<String>> decryptByteArraysAES(List<byte[]> arraysToDecrypt, final Key key, ExecutorService executor) {
+		return runBulk(arraysToDecrypt, new BulkOperation<byte[], String>() {
+			@Override
+			public String apply(byte[] item) throws Exception {
+				return new String(CipherCache.doFinal(AES_ECB, Cipher.DECRYPT_MODE, key, item));
+			}
+		}, executor);
+	}
+	
+	/**
+	 * Encrypts many strings with AES-GCM in parallel. The current key is resolved once
+	 * @param stringsToEncrypt strings to crypt, encoded in UTF-8
+	 * @param keys resolver of the keys
+	 * @param executor executor of the work. If null a pool with a thread for every processor is used
+	 * @return one result for every string, in the same order. null if the key can't be resolved
+	 */
+	public List<CryptoBulkResult<byte[]>> encryptStringsGcmAES(List<String> stringsToEncrypt, AesKeyResolver keys, ExecutorService executor) {
+		try {
+			final String keyId = keys.getCurrentKeyId();
+			final Key key = keys.getKey(keyId);
+			return runBulk(stringsToEncrypt, new BulkOperation<String, byte[]>() {
+				@Override
+				public byte[] apply(String item) throws Exception {
+					return GcmEnvelope.encrypt(item.getBytes(UTF8), keyId, key);
+				}
+			}, executor);
+		} catch (Exception e) {
+			log.error("[ToolCryptography] *** EXCEPTION ***",e);
+		}
+		return null;
+	}
+	
+	/**
+	 * Decrypts many byte arrays in parallel, like decryptByteArrayAES: GCM with the key of the header, ECB with the current key
+	 * @param arraysToDecrypt byte arrays to decrypt
+	 * @param keys resolver of the keys
+	 * @param executor executor of the work. If null a pool with a thread for every processor is used
+	 * @return one result for every array, in the same order. An item that fails doesn't stop the others
+	 */
+	public List<CryptoBulkResult<String>> decryptByteArraysAES(List<byte[]> arraysToDecrypt, final AesKeyResolver keys, ExecutorService executor) {
+		return runBulk(arraysToDecrypt, new BulkOperation<byte[], String>() {
+			@Override
+			public String apply(byte[] item) throws Exception {
+				if(GcmEnvelope.isGcm(item)) {
+					return new String(GcmEnvelope.decrypt(item, keys.getKey(GcmEnvelope.getKeyId(item))), UTF8);
 				}
+				return new String(CipherCache.doFinal(AES_ECB, Cipher.DECRYPT_MODE, keys.getKey(keys.getCurrentKeyId()), item));
+			}
+		}, executor);
+	}
+	
+	/**
+	 * Encrypts a stream with AES/ECB using a fixed buffer, the memory used doesn't depend on the size of the data
+	 * @param in data to encrypt, read until the end. It is not closed
+	 * @param out destination of the encrypted data. It is not closed
+	 * @param key AES key, ie: from generateSecretKeyForAES or getKeyStoreKeyProvider
+	 * @return number of bytes written. -1 if exception
+	 */
+	public long encryptStreamAES(InputStream in, OutputStream out, Key key) {
+		return transformStream(Cipher.ENCRYPT_MODE, in, out, key);
+	}
+	
+	/**
+	 * Decrypts a stream with AES/ECB using a fixed buffer, the memory used doesn't depend on the size of the data
+	 * @param in data to decrypt, read until the end. It is not closed
+	 * @param out destination of the decrypted data. It is not closed
+	 * @param key AES key, ie: from generateSecretKeyForAES or getKeyStoreKeyProvider
+	 * @return number of bytes written. -1 if exception
+	 */
+	public long decryptStreamAES(InputStream in, OutputStream out, Key key) {
+		return transformStream(Cipher.DECRYPT_MODE, in, out, key);
+	}
+	
+	/**
+	 * Encrypts a channel with AES/ECB using direct buffers of fixed size
+	 * @param in data to encrypt, read until the end. It is not closed
+	 * @param out destination of the encrypted data. It is not closed
+	 * @param key AES key
+	 * @return number of bytes written. -1 if exception
+	 */
+	public long encryptChannelAES(ReadableByteChannel in, WritableByteChannel out, Key key) {
+		return transformChannel(Cipher.ENCRYPT_MODE, in, out, key);
+	}
+	
+	/**
+	 * Decrypts a channel with AES/ECB using direct buffers of fixed size
+	 * @param in data to decrypt, read until the end. It is not closed
+	 * @param out destination of the decrypted data. It is not closed
+	 * @param key AES key
+	 * @return number of bytes written. -1 if exception
+	 */
+	public long decryptChannelAES(ReadableByteChannel in, WritableByteChannel out, Key key) {
+		return transformChannel(Cipher.DECRYPT_MODE, in, out, key);
+	}
+	
+	/**
+	 * Encrypts the remaining bytes of a buffer into another one, they can be direct buffers.
+	 * This method allocates no array, the JCE provider may still copy direct buffers through temporary arrays
+	 * @param source data to encrypt, from position to limit. Its position is moved to the limit
+	 * @param destination receives the encrypted data from its position. It needs source.remaining()+16 free bytes
+	 * @param key AES key
+	 * @return number of bytes written. -1 if exception
+	 */
+	public int encryptBufferAES(ByteBuffer source, ByteBuffer destination, Key key) {
+		return transformBuffer(Cipher.ENCRYPT_MODE, source, destination, key);
+	}
+	
+	/**
+	 * Decrypts the remaining bytes of a buffer into another one, they can be direct buffers.
+	 * This method allocates no array, the JCE provider may still copy direct buffers through temporary arrays
+	 * @param source data to decrypt, from position to limit. Its position is moved to the limit
+	 * @param destination receives the decrypted data from its position. It needs source.remaining() free bytes
+	 * @param key AES key
+	 * @return number of bytes written. -1 if exception
+	 */
+	public int decryptBufferAES(ByteBuffer source, ByteBuffer destination, Key key) {
+		return transformBuffer(Cipher.DECRYPT_MODE, source, destination, key);
+	}
+	
+	/**
+	 * Encrypts a file into another one with AES/ECB through FileChannel and direct buffers
+	 * @param sourcePath file to encrypt
+	 * @param destinationPath encrypted file. It is overwritten, and deleted if the encryption fails
+	 * @param key AES key
+	 * @return number of bytes written. -1 if exception
+	 */
+	public long encryptFileAES(String sourcePath, String destinationPath, Key key) {
+		return transformFile(Cipher.ENCRYPT_MODE, sourcePath, destinationPath, key);
+	}
+	
+	/**
+	 * Decrypts a file into another one with AES/ECB through FileChannel and direct buffers
+	 * @param sourcePath file to decrypt
+	 * @param destinationPath decrypted file. It is overwritten, and deleted if the decryption fails
+	 * @param key AES key
+	 * @return number of bytes written. -1 if exception
+	 */
+	public long decryptFileAES(String sourcePath, String destinationPath, Key key) {
+		return transformFile(Cipher.DECRYPT_MODE, sourcePath, destinationPath, key);
+	}
+	
+	private long transformStream(int mode, InputStream in, OutputStream out, Key key) {
+		try {
+			return CipherStreams.transform(CipherCache.get(AES_ECB, mode, key), in, out);
+		} catch (Exception e) {
+			log.error("[ToolCryptography] *** EXCEPTION ***",e);
+			CipherCache.discard(AES_ECB);
+		}
+		return -1;
+	}
+	
+	private long transformChannel(int mode, ReadableByteChannel in, WritableByteChannel out, Key key) {
+		try {
+			return CipherStreams.transform(CipherCache.get(AES_ECB, mode, key), in, out);
+		} catch (Exception e) {
+			log.error("[ToolCryptography] *** EXCEPTION ***",e);
+			CipherCache.discard(AES_ECB);
+		}
+		return -1;
+	}
+	
+	private int transformBuffer(int mode, ByteBuffer source, ByteBuffer destination, Key key) {
+		try {
+			return CipherCache.get(AES_ECB, mode, key).doFinal(source, destination);
+		} catch (Exception e) {
+			log.error("[ToolCryptography] *** EXCEPTION ***",e);
+			CipherCache.discard(AES_ECB);
+		}
+		return -1;
+	}
+	
+	private long transformFile(int mode, String sourcePath, String destinationPath, Key key) {
+		Path destination = Paths.get(destinationPath);
+		FileChannel in = null;
+		FileChannel out = null;
+		long toReturn = -1;
+		try {
+			in = FileChannel.open(Paths.get(sourcePath), StandardOpenOption.READ);
+			out = FileChannel.open(destination, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+			toReturn = CipherStreams.transform(CipherCache.get(AES_ECB, mode, key), in, out);
+		} catch (Exception e) {
+			log.error("[ToolCryptography] *** EXCEPTION ***",e);
+			CipherCache.discard(AES_ECB);
+		}
+		finally {
+			try {
+				if(in!=null) {
+					in.close();
+				}
+			} catch (Exception e) {
+				log.error("[ToolCryptography] *** EXCEPTION ***",e);
+			}
+			try {
+				if(out!=null) {
+					out.close();
+				}
+				if(toReturn<0) {
+					Files.deleteIfExists(destination);
+				}
+			} catch (Exception e) {
+				log.error("[ToolCryptography] *** EXCEPTION ***",e);
 			}
 		}
 		return toReturn;
 	}
 	
 	/**
-	 * 
-	 * @param array byte array
-	 * @return ie: 73 -113 78 3 -5 56 30 -89 97 61 122 -123 -46 -22 89 61
+	 * Splits the items in chunks, a few for every thread of the executor, and collects the results in the original order
 	 */
-	public String byteArrayToString(byte[] array) {
-		String toReturn = "";
-		for (int i = 0; i < array.length; i++) {
-			toReturn += array[i]+" ";
+	private <I, O> List<CryptoBulkResult<O>> runBulk(final List<I> items, final BulkOperation<I, O> operation, ExecutorService executor) {
+		final List<CryptoBulkResult<O>> toReturn = new ArrayList<CryptoBulkResult<O>>(items.size());
+		for (int i = 0; i < items.size(); i++) {
+			toReturn.add(null);
+		}
+		if(executor==null) {
+			executor = getWorkerExecutor();
 		}
-		if(toReturn.length()>0) {
-			toReturn = toReturn.substring(0,toReturn.length()-1);
+		int chunkSize = Math.max(BULK_MIN_CHUNK, items.size()/(Runtime.getRuntime().availableProcessors()*4)+1);
+		List<Future<?>> chunks = new ArrayList<Future<?>>();
+		for (int start = 0; start < items.size(); start += chunkSize) {
+			final int from = start;
+			final int to = Math.min(items.size(), start+chunkSize);
+			Runnable chunk = new Runnable() {
+				@Override
+				public void run() {
+					for (int i = from; i < to; i++) {
+						CryptoBulkResult<O> result;
+						try {
+							result = new CryptoBulkResult<O>(operation.apply(items.get(i)), null);
+						} catch (Exception e) {
+							result = new CryptoBulkResult<O>(null, e);
+						}
+						// every chunk writes different positions, Future.get makes them visible
+						toReturn.set(i, result);
+					}
+				}
+			};
+			try {
+				chunks.add(executor.submit(chunk));
+			} catch (RejectedExecutionException e) {
+				// executor saturated or shut down: the caller does the work
+				chunk.run();
+				chunks.add(null);
+			}
+		}
+		boolean interrupted = false;
+		for (int c = 0; c < chunks.size(); c++) {
+			try {
+				if(chunks.get(c)!=null) {
+					chunks.get(c).get();
+				}
+			} catch (Exception e) {
+				if(e instanceof InterruptedException) {
+					interrupted = true;
+				}
+				log.error("[ToolCryptography] *** EXCEPTION ***",e);
+				// the chunk didn't complete: mark its items as failed
+				for (int i = c*chunkSize; i < Math.min(items.size(), (c+1)*chunkSize); i++) {
+					if(toReturn.get(i)==null) {
+						toReturn.set(i, new CryptoBulkResult<O>(null, e));
+					}
+				}
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
 		}
 		return toReturn;
 	}
 	
+	/**
+	 * Work on a single item of the bulk methods
+	 */
+	private interface BulkOperation<I, O> {
+		O apply(I item) throws Exception;
+	}
+	
+	private synchronized ExecutorService getWorkerExecutor() {
+		if(workerExecutor==null) {
+			final AtomicInteger counter = new AtomicInteger();
+			// daemon threads, they must not keep the JVM alive
+			workerExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread toReturn = new Thread(r, "ToolCryptography-worker-"+counter.incrementAndGet());
+					toReturn.setDaemon(true);
+					return toReturn;
+				}
+			});
+		}
+		return workerExecutor;
+	}
+	
+	/**
+	 * Reads the legacy decimal format in linear time, see ByteCodec for hex and Base64
+	 * @param bytes ie: 73 -113 78 3 -5 56 30 -89 97 61 122 -123 -46 -22 89 61
+	 * @return byte array of the corresponding characters
+	 */
+	public byte[] stringOfBytesToByteArray(String bytes) {
+		return ByteCodec.decodeDecimal(bytes);
+	}
+	
+	/**
+	 * Writes the legacy decimal format in linear time, see ByteCodec for hex and Base64
+	 * @param array byte array
+	 * @return ie: 73 -113 78 3 -5 56 30 -89 97 61 122 -123 -46 -22 89 61
+	 */
+	public String byteArrayToString(byte[] array) {
+		return ByteCodec.encodeDecimal(array);
+	}
+	
 }
@@ -0,0 +1,46 @@
+package crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.ibm.websphere.crypto.KeySetHelper;
+
+/**
+ * Reads the keysets from websphere with KeySetHelper. Every call goes into the WAS security runtime,
+ * use it through KeySetResolver
+ * @author enrico guariento
+ *
+ */
+public class WasKeySetProvider implements KeySetProvider {
+
+	@Override
+	public Key getLatestKey(String keysetName) throws GeneralSecurityException {
+		try {
+			return (Key) KeySetHelper.getInstance().getLatestKeyForKeySet(keysetName);
+		} catch (Exception e) {
+			throw new GeneralSecurityException("Keyset "+keysetName+" not available", e);
+		}
+	}
+
+	@Override
+	public Map<String, Key> getAllKeys(String keysetName) throws GeneralSecurityException {
+		Map<?, ?> keys;
+		try {
+			keys = KeySetHelper.getInstance().getAllKeysForKeySet(keysetName);
+		} catch (Exception e) {
+			throw new GeneralSecurityException("Keyset "+keysetName+" not available", e);
+		}
+		Map<String, Key> toReturn = new HashMap<String, Key>();
+		if(keys!=null) {
+			for(Map.Entry<?, ?> entry : keys.entrySet()) {
+				if(entry.getValue() instanceof Key) {
+					toReturn.put(String.valueOf(entry.getKey()), (Key)entry.getValue());
+				}
+			}
+		}
+		return toReturn;
+	}
+
+}
@@ -0,0 +1,418 @@
+package db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Write-behind queue for inserts: the callers enqueue the statements and return immediately,
+ * a few writer threads drain the queue in batches on the pooled connections.
+ * Always call shutdown (ToolDB.disconnect does it) to write the rows still in the queue
+ * @author enrico guariento
+ *
+ */
+public class DbAsyncWriter {
+
+	/**
+	 * What enqueue does when the queue is full
+	 */
+	public enum Backpressure {
+		/** waits for free space */
+		BLOCK,
+		/** discards the row */
+		DROP,
+		/** appends the row to the spill file, to be written later with replaySpillFile */
+		SPILL
+	}
+
+	private static final long POLL_MILLIS = 100L;
+
+	private final DbConnectionPool pool;
+	private final BlockingQueue<Item> queue;
+	private final int batchSize;
+	private final Backpressure backpressure;
+	private final File spillFile;
+	private final Logger log;
+	private final List<Thread> writers = new ArrayList<Thread>();
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong spilled = new AtomicLong();
+	private volatile long lastLagMillis = 0;
+	private volatile boolean running = true;
+	private volatile boolean stopped = false;
+	private DataOutputStream spillStream;
+	private boolean spillClosed = false;
+
+	/**
+	 * @param pool pool of the datasource
+	 * @param queueCapacity maximum number of rows waiting in the queue
+	 * @param writerThreads number of threads writing on the database
+	 * @param batchSize maximum number of rows written in one batch
+	 * @param backpressure what to do when the queue is full
+	 * @param spillFile file used with Backpressure.SPILL, ignored otherwise. It is overwritten
+	 * @param log logger. If null the logger of this class is used
+	 */
+	public DbAsyncWriter(DbConnectionPool pool, int queueCapacity, int writerThreads, int batchSize, Backpressure backpressure, File spillFile, Logger log) {
+		this.pool = pool;
+		this.queue = new ArrayBlockingQueue<Item>(Math.max(1, queueCapacity));
+		this.batchSize = Math.max(1, batchSize);
+		this.backpressure = backpressure!=null ? backpressure : Backpressure.BLOCK;
+		this.spillFile = spillFile;
+		this.log = log!=null ? log : Logger.getLogger(DbAsyncWriter.class);
+		if(this.backpressure==Backpressure.SPILL && spillFile==null) {
+			throw new IllegalArgumentException("Spill file required with Backpressure.SPILL");
+		}
+		for (int i = 0; i < Math.max(1, writerThreads); i++) {
+			Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			}, "DbAsyncWriter-"+pool.getName()+"-"+i);
+			writer.setDaemon(true);
+			writer.start();
+			writers.add(writer);
+		}
+	}
+
+	/**
+	 * Puts a statement in the queue
+	 * @param sql sql with ? placeholders, ie: insert into audit(user, action) values(?, ?)
+	 * @param params values of the placeholders, in order. They must be Serializable to be spilled
+	 * @return true if the row has been queued or spilled, false if dropped
+	 */
+	public boolean enqueue(String sql, Object... params) {
+		if(!running) {
+			log.error("[DbAsyncWriter] Writer already shut down, row discarded: "+sql);
+			dropped.incrementAndGet();
+			return false;
+		}
+		Item item = new Item(sql, params);
+		boolean toReturn = false;
+		switch(backpressure) {
+		case BLOCK:
+			try {
+				queue.put(item);
+				toReturn = true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			break;
+		case SPILL:
+			toReturn = queue.offer(item) || spill(item);
+			break;
+		default:
+			toReturn = queue.offer(item);
+			break;
+		}
+		if(toReturn) {
+			enqueued.incrementAndGet();
+		}
+		else {
+			dropped.incrementAndGet();
+		}
+		return toReturn;
+	}
+
+	/**
+	 * Stops accepting rows and waits for the writers to empty the queue.
+	 * After the timeout the writers are stopped: the method waits only for the batches they are writing,
+	 * so the pool can be closed after it. The rows still in the queue are spilled (with Backpressure.SPILL) or lost
+	 * @param timeoutMillis maximum time to wait for the queue
+	 * @return true if all the rows have been written
+	 */
+	public boolean shutdown(long timeoutMillis) {
+		running = false;
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		boolean interrupted = false;
+		for(Thread writer : writers) {
+			try {
+				writer.join(Math.max(1L, deadline-System.currentTimeMillis()));
+			} catch (InterruptedException e) {
+				interrupted = true;
+				break;
+			}
+		}
+		// the writers take no more rows, the ones waiting for the queue are woken up
+		stopped = true;
+		for(Thread writer : writers) {
+			writer.interrupt();
+		}
+		for(Thread writer : writers) {
+			while(writer.isAlive()) {
+				try {
+					writer.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		boolean toReturn = queue.isEmpty();
+		if(!toReturn) {
+			List<Item> left = new ArrayList<Item>();
+			queue.drainTo(left);
+			for(Item item : left) {
+				if(backpressure!=Backpressure.SPILL || !spill(item)) {
+					dropped.incrementAndGet();
+				}
+			}
+			log.error("[DbAsyncWriter] "+left.size()+" rows not written before the shutdown of "+pool.getName());
+		}
+		closeSpillFile();
+		log.info("[DbAsyncWriter] Shut down "+this);
+		return toReturn;
+	}
+
+	/**
+	 * Writes synchronously the rows saved in a spill file. A record that can't be read is logged and skipped
+	 * @param pool pool of the datasource
+	 * @param file spill file of a previous writer (not the one in use)
+	 * @param log logger for the errors
+	 * @return number of rows written, -1 if the file can't be opened
+	 */
+	public static int replaySpillFile(DbConnectionPool pool, File file, Logger log) {
+		int toReturn = 0;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		} catch (IOException e) {
+			log.error("[DbAsyncWriter] *** EXCEPTION ***",e);
+			return -1;
+		}
+		try {
+			int record = 0;
+			while(true) {
+				byte[] bytes;
+				try {
+					bytes = new byte[in.readInt()];
+					in.readFully(bytes);
+				} catch (EOFException e) {
+					// end of the file, or last record truncated by a crash
+					break;
+				}
+				record++;
+				Item item;
+				try {
+					item = (Item) new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+				} catch (Exception e) {
+					log.error("[DbAsyncWriter] Record "+record+" of "+file.getAbsolutePath()+" can't be read, skipped", e);
+					continue;
+				}
+				List<Object[]> rows = new ArrayList<Object[]>();
+				rows.add(item.params);
+				if(DbBatchWriter.executeBatch(pool, item.sql, rows, log).isCommitted()) {
+					toReturn++;
+				}
+			}
+		} catch (IOException e) {
+			// the rows read so far have been written anyway
+			log.error("[DbAsyncWriter] *** EXCEPTION ***",e);
+		}
+		finally {
+			try {
+				if(in!=null) {
+					in.close();
+				}
+			} catch (IOException e) {
+				log.error("[DbAsyncWriter] *** EXCEPTION ***",e);
+			}
+		}
+		return toReturn;
+	}
+
+	/**
+	 * @return number of rows waiting in the queue
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return age of the oldest row in the queue in milliseconds, 0 if the queue is empty
+	 */
+	public long getOldestRowAgeMillis() {
+		Item oldest = queue.peek();
+		return oldest!=null ? System.currentTimeMillis()-oldest.enqueueTime : 0;
+	}
+
+	/**
+	 * @return time between the enqueue and the write of the last batch, in milliseconds
+	 */
+	public long getLastLagMillis() {
+		return lastLagMillis;
+	}
+
+	public long getEnqueued() {
+		return enqueued.get();
+	}
+
+	public long getWritten() {
+		return written.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getSpilled() {
+		return spilled.get();
+	}
+
+	@Override
+	public String toString() {
+		return "DbAsyncWriter(pool="+pool.getName()+", depth="+getQueueDepth()+", lagMillis="+getLastLagMillis()
+				+", enqueued="+getEnqueued()+", written="+getWritten()+", failed="+getFailed()
+				+", dropped="+getDropped()+", spilled="+getSpilled()+")";
+	}
+
+	private void drain() {
+		List<Item> items = new ArrayList<Item>();
+		while(!stopped && (running || !queue.isEmpty())) {
+			try {
+				Item first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if(first==null) {
+					continue;
+				}
+				items.clear();
+				items.add(first);
+				queue.drainTo(items, batchSize-1);
+				write(items);
+				lastLagMillis = System.currentTimeMillis()-first.enqueueTime;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (RuntimeException e) {
+				log.error("[DbAsyncWriter] *** EXCEPTION ***",e);
+			}
+		}
+	}
+
+	private void write(List<Item> items) {
+		// one batch for every statement, keeping the order
+		Map<String, List<Object[]>> bySql = new LinkedHashMap<String, List<Object[]>>();
+		for(Item item : items) {
+			List<Object[]> rows = bySql.get(item.sql);
+			if(rows==null) {
+				rows = new ArrayList<Object[]>();
+				bySql.put(item.sql, rows);
+			}
+			rows.add(item.params);
+		}
+		for(Map.Entry<String, List<Object[]>> entry : bySql.entrySet()) {
+			List<Object[]> rows = entry.getValue();
+			if(DbBatchWriter.executeBatch(pool, entry.getKey(), rows, log).isCommitted()) {
+				written.addAndGet(rows.size());
+			}
+			else if(rows.size()==1) {
+				failed.incrementAndGet();
+				log.error("[DbAsyncWriter] Row not written: "+entry.getKey());
+			}
+			else {
+				// the batch was rolled back: write the rows one by one so only the bad ones are lost
+				for(Object[] row : rows) {
+					List<Object[]> single = new ArrayList<Object[]>();
+					single.add(row);
+					if(DbBatchWriter.executeBatch(pool, entry.getKey(), single, log).isCommitted()) {
+						written.incrementAndGet();
+					}
+					else {
+						failed.incrementAndGet();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends the row to the spill file as a record of its own (length and serialized row),
+	 * so a row that can't be serialized is not written and does not break the following ones
+	 */
+	private synchronized boolean spill(Item item) {
+		if(spillClosed) {
+			return false;
+		}
+		byte[] record;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(item);
+			out.close();
+			record = bytes.toByteArray();
+		} catch (IOException e) {
+			log.error("[DbAsyncWriter] Row not serializable, not spilled: "+item.sql, e);
+			return false;
+		}
+		try {
+			if(spillStream==null) {
+				spillStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+				log.warn("[DbAsyncWriter] Queue of "+pool.getName()+" full, spilling to "+spillFile.getAbsolutePath());
+			}
+			spillStream.writeInt(record.length);
+			spillStream.write(record);
+			spillStream.flush();
+			spilled.incrementAndGet();
+			return true;
+		} catch (IOException e) {
+			log.error("[DbAsyncWriter] *** EXCEPTION ***",e);
+			return false;
+		}
+	}
+
+	private synchronized void closeSpillFile() {
+		spillClosed = true;
+		if(spillStream!=null) {
+			try {
+				spillStream.close();
+			} catch (IOException e) {
+				log.error("[DbAsyncWriter] *** EXCEPTION ***",e);
+			}
+			spillStream = null;
+		}
+	}
+
+	/**
+	 * A statement waiting in the queue
+	 */
+	private static class Item implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final String sql;
+		private final Object[] params;
+		private final long enqueueTime = System.currentTimeMillis();
+
+		private Item(String sql, Object[] params) {
+			this.sql = sql;
+			this.params = params;
+		}
+	}
+
+}
@@ -0,0 +1,15 @@
+package db;
+
+/**
+ * Receives the result of every batch executed by DbBatchWriter, also the ones flushed by the timer
+ * @author enrico guariento
+ *
+ */
+public interface DbBatchListener {
+
+	/**
+	 * @param result result of the batch. If not committed, the rows can be found in getRows to retry them
+	 */
+	void batchExecuted(DbBatchResult result);
+
+}
@@ -0,0 +1,67 @@
+package db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of the execution of a batch of DbBatchWriter
+ * The batch runs in one transaction: if a row fails, the whole batch is rolled back
+ * @author enrico guariento
+ *
+ */
+public class DbBatchResult {
+
+	private final List<Object[]> rows;
+	private final int[] updateCounts;
+	private final List<Integer> failedRows;
+	private final Exception error;
+
+	public DbBatchResult(List<Object[]> rows, int[] updateCounts, List<Integer> failedRows, Exception error) {
+		this.rows = rows;
+		this.updateCounts = updateCounts;
+		this.failedRows = failedRows!=null ? failedRows : new ArrayList<Integer>();
+		this.error = error;
+	}
+
+	/**
+	 * @return the parameters of the rows of the batch, in order
+	 */
+	public List<Object[]> getRows() {
+		return Collections.unmodifiableList(rows);
+	}
+
+	/**
+	 * @return the update counts returned by the driver. Can be shorter than the rows if the driver stopped at the first error
+	 */
+	public int[] getUpdateCounts() {
+		return updateCounts;
+	}
+
+	/**
+	 * @return indexes (in getRows) of the rows reported as failed by the driver
+	 */
+	public List<Integer> getFailedRows() {
+		return Collections.unmodifiableList(failedRows);
+	}
+
+	/**
+	 * @return error of the batch, null if committed
+	 */
+	public Exception getError() {
+		return error;
+	}
+
+	/**
+	 * @return true if all the rows have been written and committed
+	 */
+	public boolean isCommitted() {
+		return error==null;
+	}
+
+	@Override
+	public String toString() {
+		return "DbBatchResult(rows="+rows.size()+", committed="+isCommitted()+", failedRows="+failedRows+")";
+	}
+
+}
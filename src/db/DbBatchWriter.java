@@ -0,0 +1,236 @@
+package db;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Collects the parameters of a statement and writes them with addBatch/executeBatch
+ * A batch is executed when it reaches the batch size or when its first row is older than the flush interval.
+ * Every batch runs in one transaction. Always call close when finished, to write the last rows
+ * @author enrico guariento
+ *
+ */
+public class DbBatchWriter {
+
+	private final DbConnectionPool pool;
+	private final String sql;
+	private final int batchSize;
+	private final long flushIntervalMillis;
+	private final DbBatchListener listener;
+	private final Logger log;
+	private List<Object[]> buffer = new ArrayList<Object[]>();
+	private long firstRowTime = 0;
+	private long rowsWritten = 0;
+	private long rowsFailed = 0;
+	private long batches = 0;
+	private Timer timer;
+	private boolean closed = false;
+
+	/**
+	 * @param pool pool of the datasource
+	 * @param sql sql with ? placeholders, ie: insert into audit(user, action) values(?, ?)
+	 * @param batchSize number of rows of a batch
+	 * @param flushIntervalMillis maximum time a row waits before being written. 0 means only by size
+	 * @param listener receives the result of every batch. Can be null, errors are logged anyway
+	 * @param log logger. If null the logger of this class is used
+	 */
+	public DbBatchWriter(DbConnectionPool pool, String sql, int batchSize, long flushIntervalMillis, DbBatchListener listener, Logger log) {
+		this.pool = pool;
+		this.sql = sql;
+		this.batchSize = Math.max(1, batchSize);
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.listener = listener;
+		this.log = log!=null ? log : Logger.getLogger(DbBatchWriter.class);
+		if(flushIntervalMillis>0) {
+			timer = new Timer("DbBatchWriter-"+pool.getName(), true);
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					flushIfOld();
+				}
+			}, flushIntervalMillis, Math.max(1L, flushIntervalMillis/2));
+		}
+	}
+
+	/**
+	 * Adds a row to the current batch. If the batch is full, it is executed in the calling thread
+	 * @param params values of the placeholders, in order
+	 * @throws IllegalStateException if the writer is closed
+	 */
+	public synchronized void add(Object... params) {
+		if(closed) {
+			throw new IllegalStateException("DbBatchWriter already closed");
+		}
+		if(buffer.isEmpty()) {
+			firstRowTime = System.currentTimeMillis();
+		}
+		buffer.add(params);
+		if(buffer.size()>=batchSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Executes the rows collected so far in one transaction
+	 * @return result of the batch, null if there were no rows
+	 */
+	public synchronized DbBatchResult flush() {
+		if(buffer.isEmpty()) {
+			return null;
+		}
+		List<Object[]> rows = buffer;
+		buffer = new ArrayList<Object[]>();
+		DbBatchResult result = executeBatch(pool, sql, rows, log);
+		batches++;
+		if(result.isCommitted()) {
+			rowsWritten += rows.size();
+		}
+		else {
+			rowsFailed += rows.size();
+			log.error("[DbBatchWriter] Batch of "+rows.size()+" rows rolled back, failed rows "+result.getFailedRows(), result.getError());
+		}
+		if(listener!=null) {
+			try {
+				listener.batchExecuted(result);
+			} catch (RuntimeException e) {
+				log.error("[DbBatchWriter] *** EXCEPTION ***",e);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the last rows and stops the timer
+	 * @return result of the last batch, null if there were no rows
+	 */
+	public synchronized DbBatchResult close() {
+		if(timer!=null) {
+			timer.cancel();
+		}
+		DbBatchResult toReturn = flush();
+		closed = true;
+		return toReturn;
+	}
+
+	/**
+	 * @return number of rows waiting to be written
+	 */
+	public synchronized int getPendingRows() {
+		return buffer.size();
+	}
+
+	public synchronized long getRowsWritten() {
+		return rowsWritten;
+	}
+
+	/**
+	 * @return number of rows of the batches rolled back
+	 */
+	public synchronized long getRowsFailed() {
+		return rowsFailed;
+	}
+
+	public synchronized long getBatches() {
+		return batches;
+	}
+
+	private synchronized void flushIfOld() {
+		if(!buffer.isEmpty() && System.currentTimeMillis()-firstRowTime>=flushIntervalMillis) {
+			flush();
+		}
+	}
+
+	/**
+	 * Executes the rows as one batch in one transaction. Used also by DbAsyncWriter
+	 */
+	static DbBatchResult executeBatch(DbConnectionPool pool, String sql, List<Object[]> rows, Logger log) {
+		Connection connection = null;
+		PreparedStatement ps = null;
+		int[] updateCounts = null;
+		List<Integer> failedRows = new ArrayList<Integer>();
+		Exception error = null;
+		try {
+			connection = pool.getConnection();
+			connection.setAutoCommit(false);
+			ps = pool.prepareCached(connection, sql);
+			// the cached statement can still have the parameters and the batch of a previous failed call
+			ps.clearParameters();
+			ps.clearBatch();
+			for(Object[] params : rows) {
+				for (int i = 0; params!=null && i < params.length; i++) {
+					if(params[i]==null) {
+						ps.setNull(i+1, Types.NULL);
+					}
+					else {
+						ps.setObject(i+1, params[i]);
+					}
+				}
+				ps.addBatch();
+			}
+			updateCounts = ps.executeBatch();
+			connection.commit();
+		}
+		catch(BatchUpdateException e) {
+			error = e;
+			updateCounts = e.getUpdateCounts();
+			if(updateCounts!=null) {
+				for (int i = 0; i < updateCounts.length; i++) {
+					if(updateCounts[i]==Statement.EXECUTE_FAILED) {
+						failedRows.add(i);
+					}
+				}
+				// the driver stopped at the first error
+				if(failedRows.isEmpty() && updateCounts.length<rows.size()) {
+					failedRows.add(updateCounts.length);
+				}
+			}
+			rollback(connection, ps, log);
+		}
+		catch(Exception e) {
+			error = e;
+			rollback(connection, ps, log);
+		}
+		finally {
+			try {
+				if(ps!=null && !pool.isStatementCacheEnabled()) {
+					ps.close();
+				}
+			} catch (SQLException e) {
+				log.error("[DbBatchWriter] *** EXCEPTION ***",e);
+			}
+			try {
+				// the pool restores the autocommit when the connection goes back
+				if(connection!=null) {
+					connection.close();
+				}
+			} catch (SQLException e) {
+				log.error("[DbBatchWriter] *** EXCEPTION ***",e);
+			}
+		}
+		return new DbBatchResult(rows, updateCounts, failedRows, error);
+	}
+
+	private static void rollback(Connection connection, PreparedStatement ps, Logger log) {
+		try {
+			if(ps!=null) {
+				ps.clearBatch();
+			}
+			if(connection!=null) {
+				connection.rollback();
+			}
+		} catch (SQLException e) {
+			log.error("[DbBatchWriter] *** EXCEPTION ***",e);
+		}
+	}
+
+}
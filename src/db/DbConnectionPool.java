@@ -0,0 +1,425 @@
+package db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded pool of JDBC connections on top of a DataSource
+ * The returned connections go back to the pool when closed, so always close them in a finally block
+ * @author enrico guariento
+ *
+ */
+public class DbConnectionPool {
+
+	private final String name;
+	private final DataSource dataSource;
+	private final DbPoolConfig config;
+	private final Logger log;
+	private final Semaphore permits;
+	private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+	private final Map<Lease, Boolean> active = new ConcurrentHashMap<Lease, Boolean>();
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong borrowTimeouts = new AtomicLong();
+	private final AtomicLong borrowWaitNanos = new AtomicLong();
+	private final AtomicLong connectionsCreated = new AtomicLong();
+	private final AtomicLong connectionsDiscarded = new AtomicLong();
+	private final AtomicLong leaksDetected = new AtomicLong();
+	private final AtomicLong statementCacheHits = new AtomicLong();
+	private final AtomicLong statementCacheMisses = new AtomicLong();
+	private final AtomicLong statementsEvicted = new AtomicLong();
+	private Timer leakTimer;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param name name used in the logs, usually the jndi name of the datasource
+	 * @param dataSource source of the physical connections
+	 * @param config configuration of the pool. If null, the default values are used
+	 * @param log logger for warnings and leak reports
+	 */
+	public DbConnectionPool(String name, DataSource dataSource, DbPoolConfig config, Logger log) {
+		this.name = name;
+		this.dataSource = dataSource;
+		this.config = config!=null ? config : new DbPoolConfig();
+		this.log = log!=null ? log : Logger.getLogger(DbConnectionPool.class);
+		this.permits = new Semaphore(Math.max(1, this.config.getMaxConnections()), true);
+		long threshold = this.config.getLeakDetectionThresholdMillis();
+		if(threshold>0) {
+			leakTimer = new Timer("DbConnectionPool-leak-"+name, true);
+			leakTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					checkLeaks();
+				}
+			}, threshold, Math.max(1000L, threshold/2));
+		}
+	}
+
+	/**
+	 * Takes a connection from the pool, waiting up to the borrow timeout. Close it to give it back
+	 * @return connection
+	 * @throws SQLException if no connection is available in time or the datasource fails
+	 */
+	public Connection getConnection() throws SQLException {
+		if(closed) {
+			throw new SQLException("Pool "+name+" is closed");
+		}
+		long start = System.nanoTime();
+		try {
+			if(!permits.tryAcquire(config.getBorrowTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+				borrowWaitNanos.addAndGet(System.nanoTime()-start);
+				borrowTimeouts.incrementAndGet();
+				throw new SQLException("Timeout waiting for a connection of pool "+name+" after "+config.getBorrowTimeoutMillis()+" ms");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a connection of pool "+name, e);
+		}
+		borrowWaitNanos.addAndGet(System.nanoTime()-start);
+		try {
+			PooledConnection pooled = takeIdle();
+			if(pooled==null) {
+				pooled = new PooledConnection(dataSource.getConnection());
+				connectionsCreated.incrementAndGet();
+			}
+			borrows.incrementAndGet();
+			Lease lease = new Lease(pooled);
+			active.put(lease, Boolean.TRUE);
+			return (Connection) Proxy.newProxyInstance(DbConnectionPool.class.getClassLoader(), new Class<?>[] { Connection.class }, lease);
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a prepared statement from the cache of the physical connection, preparing it only the first time.
+	 * Do not close the returned statement: it stays open for the next borrow of the same connection.
+	 * If the cache is disabled (statementCacheSize=0) the statement must be closed by the caller
+	 * @param connection connection borrowed from this pool
+	 * @param sql parameterized sql, ie: insert into audit(user, action) values(?, ?)
+	 * @return prepared statement
+	 * @throws SQLException if the connection is not borrowed from this pool or the prepare fails
+	 */
+	public PreparedStatement prepareCached(Connection connection, String sql) throws SQLException {
+		Lease lease = getLease(connection);
+		if(lease.returned) {
+			throw new SQLException("Connection already given back to pool "+name);
+		}
+		if(config.getStatementCacheSize()<=0) {
+			return connection.prepareStatement(sql);
+		}
+		StatementCache cache = lease.pooled.statements;
+		PreparedStatement ps = cache.get(sql);
+		if(ps!=null && !ps.isClosed()) {
+			statementCacheHits.incrementAndGet();
+			return ps;
+		}
+		statementCacheMisses.incrementAndGet();
+		ps = connection.prepareStatement(sql);
+		cache.put(sql, ps);
+		return ps;
+	}
+
+	/**
+	 * @return true if prepareCached returns statements that must not be closed
+	 */
+	public boolean isStatementCacheEnabled() {
+		return config.getStatementCacheSize()>0;
+	}
+
+	/**
+	 * Closes the idle connections. The borrowed ones are closed when given back
+	 */
+	public void close() {
+		closed = true;
+		if(leakTimer!=null) {
+			leakTimer.cancel();
+		}
+		PooledConnection pooled = null;
+		while((pooled = idle.pollFirst())!=null) {
+			discard(pooled);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return number of connections currently borrowed
+	 */
+	public int getActiveConnections() {
+		return active.size();
+	}
+
+	/**
+	 * @return number of open connections waiting in the pool
+	 */
+	public int getIdleConnections() {
+		return idle.size();
+	}
+
+	public long getBorrows() {
+		return borrows.get();
+	}
+
+	public long getBorrowTimeouts() {
+		return borrowTimeouts.get();
+	}
+
+	/**
+	 * @return average time spent waiting for a free connection, in milliseconds
+	 */
+	public double getAverageBorrowWaitMillis() {
+		long count = borrows.get() + borrowTimeouts.get();
+		return count==0 ? 0 : borrowWaitNanos.get() / 1000000.0 / count;
+	}
+
+	public long getConnectionsCreated() {
+		return connectionsCreated.get();
+	}
+
+	/**
+	 * @return number of connections closed because not valid or broken
+	 */
+	public long getConnectionsDiscarded() {
+		return connectionsDiscarded.get();
+	}
+
+	/**
+	 * @return number of connections held longer than the leak detection threshold
+	 */
+	public long getLeaksDetected() {
+		return leaksDetected.get();
+	}
+
+	public long getStatementCacheHits() {
+		return statementCacheHits.get();
+	}
+
+	public long getStatementCacheMisses() {
+		return statementCacheMisses.get();
+	}
+
+	/**
+	 * @return number of prepared statements closed because the cache of their connection was full
+	 */
+	public long getStatementsEvicted() {
+		return statementsEvicted.get();
+	}
+
+	@Override
+	public String toString() {
+		return "DbConnectionPool(name="+name+", active="+getActiveConnections()+", idle="+getIdleConnections()
+				+", borrows="+getBorrows()+", timeouts="+getBorrowTimeouts()+", avgWaitMillis="+getAverageBorrowWaitMillis()
+				+", created="+getConnectionsCreated()+", discarded="+getConnectionsDiscarded()+", leaks="+getLeaksDetected()
+				+", statementHits="+getStatementCacheHits()+", statementMisses="+getStatementCacheMisses()+")";
+	}
+
+	private PooledConnection takeIdle() {
+		PooledConnection pooled = null;
+		while((pooled = idle.pollFirst())!=null) {
+			if(!config.isValidateOnBorrow() || isValid(pooled)) {
+				return pooled;
+			}
+			log.warn("[DbConnectionPool] Discarded a not valid connection of pool "+name);
+			discard(pooled);
+		}
+		return null;
+	}
+
+	private boolean isValid(PooledConnection pooled) {
+		try {
+			return pooled.connection.isValid(config.getValidationTimeoutSeconds());
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private void giveBack(Lease lease) {
+		if(active.remove(lease)==null) {
+			// already given back
+			return;
+		}
+		PooledConnection pooled = lease.pooled;
+		try {
+			if(closed || pooled.broken || pooled.connection.isClosed()) {
+				discard(pooled);
+			}
+			else {
+				// do not leave a transaction open for the next user
+				if(!pooled.connection.getAutoCommit()) {
+					pooled.connection.rollback();
+					pooled.connection.setAutoCommit(true);
+				}
+				idle.offerFirst(pooled);
+			}
+		} catch (SQLException e) {
+			log.warn("[DbConnectionPool] Discarded a connection of pool "+name+" while giving it back", e);
+			discard(pooled);
+		}
+		finally {
+			permits.release();
+		}
+	}
+
+	private Lease getLease(Connection connection) throws SQLException {
+		if(connection!=null && Proxy.isProxyClass(connection.getClass())) {
+			InvocationHandler handler = Proxy.getInvocationHandler(connection);
+			if(handler instanceof Lease && ((Lease)handler).owner()==this) {
+				return (Lease)handler;
+			}
+		}
+		throw new SQLException("Connection not borrowed from pool "+name);
+	}
+
+	private void discard(PooledConnection pooled) {
+		connectionsDiscarded.incrementAndGet();
+		pooled.statements.closeAll();
+		try {
+			pooled.connection.close();
+		} catch (SQLException e) {
+			log.debug("[DbConnectionPool] Error closing a connection of pool "+name, e);
+		}
+	}
+
+	private void checkLeaks() {
+		long now = System.currentTimeMillis();
+		for(Lease lease : active.keySet()) {
+			if(!lease.leakReported && now-lease.borrowTime>config.getLeakDetectionThresholdMillis()) {
+				lease.leakReported = true;
+				leaksDetected.incrementAndGet();
+				log.warn("[DbConnectionPool] Connection of pool "+name+" borrowed by thread "+lease.threadName
+						+" not given back after "+(now-lease.borrowTime)+" ms, possible leak", lease.borrowStack);
+			}
+		}
+	}
+
+	/**
+	 * Physical connection kept by the pool, with its prepared statements
+	 */
+	private class PooledConnection {
+		private final Connection connection;
+		private final StatementCache statements = new StatementCache();
+		private volatile boolean broken = false;
+
+		private PooledConnection(Connection connection) {
+			this.connection = connection;
+		}
+	}
+
+	/**
+	 * LRU cache of the prepared statements of a physical connection. It is used only by the thread
+	 * that borrowed the connection, so it is not synchronized
+	 */
+	private class StatementCache extends LinkedHashMap<String, PreparedStatement> {
+		private static final long serialVersionUID = 1L;
+
+		private StatementCache() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+			if(size()>config.getStatementCacheSize()) {
+				statementsEvicted.incrementAndGet();
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+			return false;
+		}
+
+		private void closeAll() {
+			for(PreparedStatement ps : values()) {
+				closeQuietly(ps);
+			}
+			clear();
+		}
+
+		private void closeQuietly(PreparedStatement ps) {
+			try {
+				ps.close();
+			} catch (SQLException e) {
+				log.debug("[DbConnectionPool] Error closing a statement of pool "+name, e);
+			}
+		}
+	}
+
+	/**
+	 * A single borrow of a connection. Closing it gives the connection back to the pool
+	 */
+	private class Lease implements InvocationHandler {
+		private final PooledConnection pooled;
+		private final long borrowTime = System.currentTimeMillis();
+		private final String threadName = Thread.currentThread().getName();
+		private final Throwable borrowStack = new Throwable("Connection borrowed here");
+		private volatile boolean returned = false;
+		private volatile boolean leakReported = false;
+
+		private Lease(PooledConnection pooled) {
+			this.pooled = pooled;
+		}
+
+		private DbConnectionPool owner() {
+			return DbConnectionPool.this;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String methodName = method.getName();
+			if("close".equals(methodName)) {
+				returned = true;
+				giveBack(this);
+				return null;
+			}
+			if("isClosed".equals(methodName)) {
+				return returned || pooled.connection.isClosed();
+			}
+			if("equals".equals(methodName)) {
+				return proxy==args[0];
+			}
+			if("hashCode".equals(methodName)) {
+				return System.identityHashCode(proxy);
+			}
+			if("toString".equals(methodName)) {
+				return "PooledConnection("+name+", "+pooled.connection+")";
+			}
+			if(returned) {
+				throw new SQLException("Connection already given back to pool "+name);
+			}
+			try {
+				return method.invoke(pooled.connection, args);
+			} catch (InvocationTargetException e) {
+				Throwable cause = e.getCause();
+				// a connection error (SQLState class 08) means the physical connection can't be reused
+				if(cause instanceof SQLException && ((SQLException)cause).getSQLState()!=null
+						&& ((SQLException)cause).getSQLState().startsWith("08")) {
+					pooled.broken = true;
+				}
+				throw cause;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+package db;
+
+/**
+ * Configuration of the connection pool used by ToolDB for every datasource
+ * All the times are in milliseconds. If not set, the default values are used
+ * @author enrico guariento
+ *
+ */
+public class DbPoolConfig {
+
+	private int maxConnections = 10;
+	private long borrowTimeoutMillis = 5000L;
+	private boolean validateOnBorrow = true;
+	private int validationTimeoutSeconds = 2;
+	private long leakDetectionThresholdMillis = 60000L;
+	private int statementCacheSize = 50;
+
+	/**
+	 * @return maximum number of connections opened at the same time
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * @return time to wait for a free connection before failing
+	 */
+	public long getBorrowTimeoutMillis() {
+		return borrowTimeoutMillis;
+	}
+
+	public void setBorrowTimeoutMillis(long borrowTimeoutMillis) {
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+	}
+
+	/**
+	 * @return true if an idle connection is checked with Connection.isValid before being returned
+	 */
+	public boolean isValidateOnBorrow() {
+		return validateOnBorrow;
+	}
+
+	public void setValidateOnBorrow(boolean validateOnBorrow) {
+		this.validateOnBorrow = validateOnBorrow;
+	}
+
+	/**
+	 * @return timeout passed to Connection.isValid
+	 */
+	public int getValidationTimeoutSeconds() {
+		return validationTimeoutSeconds;
+	}
+
+	public void setValidationTimeoutSeconds(int validationTimeoutSeconds) {
+		this.validationTimeoutSeconds = validationTimeoutSeconds;
+	}
+
+	/**
+	 * @return a connection borrowed for longer than this is logged as a possible leak. 0 disables the check
+	 */
+	public long getLeakDetectionThresholdMillis() {
+		return leakDetectionThresholdMillis;
+	}
+
+	public void setLeakDetectionThresholdMillis(long leakDetectionThresholdMillis) {
+		this.leakDetectionThresholdMillis = leakDetectionThresholdMillis;
+	}
+
+	/**
+	 * @return maximum number of prepared statements kept open for every connection. 0 disables the cache
+	 */
+	public int getStatementCacheSize() {
+		return statementCacheSize;
+	}
+
+	public void setStatementCacheSize(int statementCacheSize) {
+		this.statementCacheSize = statementCacheSize;
+	}
+
+}
@@ -0,0 +1,20 @@
+package db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Callback used by ToolDB.query. It receives the rows one by one while they are read from the database
+ * @author enrico guariento
+ *
+ */
+public interface DbRowHandler {
+
+	/**
+	 * @param rs result set positioned on the current row. Read the columns only, do not move the cursor or close it
+	 * @return true to continue with the next row, false to stop the query
+	 * @throws SQLException thrown by the getters of the result set, it stops the query
+	 */
+	boolean handleRow(ResultSet rs) throws SQLException;
+
+}
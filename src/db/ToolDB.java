@@ -1,7 +1,13 @@
 package db;
 
+import java.io.File;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.naming.InitialContext;
 import javax.sql.DataSource;
@@ -10,6 +16,8 @@ import org.apache.log4j.Logger;
 
 /**
  * This class contains methods for DB access
+ * Every datasource has its own bounded connection pool. The methods without the datasource name
+ * use the last datasource connected
  * You can pass a logger as parameter when initializing, otherwise system.out will be used
  * @author enrico guariento
  *
@@ -18,7 +26,10 @@ public class ToolDB {
 	
 	private static Logger log = Logger.getLogger(ToolDB.class);
 	private static ToolDB instance;
-	private Connection connection;
+	private Map<String, DbConnectionPool> pools = new ConcurrentHashMap<String, DbConnectionPool>();
+	private volatile String defaultDataSource;
+	private Map<String, DbAsyncWriter> asyncWriters = new ConcurrentHashMap<String, DbAsyncWriter>();
+	private long asyncShutdownTimeoutMillis = 30000L;
 	
 	private ToolDB(Logger logger) {
 		if(logger!=null) {
@@ -44,15 +55,26 @@ public class ToolDB {
 	 * @return true if the connection is established or was already present
 	 */
 	public boolean connectWithDataSource(String datasourceName) {
+		return connectWithDataSource(datasourceName, null);
+	}
+	
+	/**
+	 * Looks up the datasource and creates its connection pool
+	 * @param datasourceName name of the datasource inside application server. ES: jdbc/myds
+	 * @param poolConfig configuration of the pool. If null, the default values are used
+	 * @return true if the pool is created or was already present
+	 */
+	public boolean connectWithDataSource(String datasourceName, DbPoolConfig poolConfig) {
 		try {
-			if(connection==null) {
+			if(!pools.containsKey(datasourceName)) {
 				log.info("[ToolDB] Trying to connect with datasource "+datasourceName);
 				InitialContext ic = new InitialContext();
 				DataSource ds = (DataSource)ic.lookup(datasourceName);
-				connection = ds.getConnection();
+				registerDataSource(datasourceName, ds, poolConfig);
 			}
 			else {
 				log.info("[ToolDB] Connection already established");
+				defaultDataSource = datasourceName;
 			}
 			return true;
 		}
@@ -61,16 +83,59 @@ public class ToolDB {
 			return false;
 		}
 	}
+	
+	/**
+	 * Creates a connection pool for a datasource not registered in jndi (ie: created by the application)
+	 * @param datasourceName name used to get the connections of the pool
+	 * @param ds datasource that creates the physical connections
+	 * @param poolConfig configuration of the pool. If null, the default values are used
+	 */
+	public synchronized void registerDataSource(String datasourceName, DataSource ds, DbPoolConfig poolConfig) {
+		if(!pools.containsKey(datasourceName)) {
+			pools.put(datasourceName, new DbConnectionPool(datasourceName, ds, poolConfig, log));
+			log.info("[ToolDB] Connection pool created for datasource "+datasourceName);
+		}
+		defaultDataSource = datasourceName;
+	}
+	
+	/**
+	 * Takes a connection from the pool of the datasource. Always close it, so it goes back to the pool
+	 * @param datasourceName name of the datasource
+	 * @return connection
+	 * @throws SQLException if the datasource is not connected or no connection is available in time
+	 */
+	public Connection getConnection(String datasourceName) throws SQLException {
+		DbConnectionPool pool = datasourceName!=null ? pools.get(datasourceName) : null;
+		if(pool==null) {
+			throw new SQLException("Datasource "+datasourceName+" not connected");
+		}
+		return pool.getConnection();
+	}
+	
+	/**
+	 * @param datasourceName name of the datasource
+	 * @return pool of the datasource with its metrics, null if not connected
+	 */
+	public DbConnectionPool getPool(String datasourceName) {
+		return pools.get(datasourceName);
+	}
 
 	/**
-	 * Always call this method when finished
+	 * Always call this method when finished. The rows of the asynchronous writers are written before closing the pools
 	 */
-	public void disconnect() {
+	public synchronized void disconnect() {
 		try {
 			log.info("[ToolDB] Trying to disconnect from DB");
-			if(connection!=null) {
-				connection.close();
+			for(DbAsyncWriter writer : asyncWriters.values()) {
+				writer.shutdown(asyncShutdownTimeoutMillis);
+			}
+			asyncWriters.clear();
+			for(DbConnectionPool pool : pools.values()) {
+				log.info("[ToolDB] Closing "+pool);
+				pool.close();
 			}
+			pools.clear();
+			defaultDataSource = null;
 		}
 		catch(Exception e) {
 			log.error("[ToolDB] *** EXCEPTION ***",e);
@@ -83,15 +148,229 @@ public class ToolDB {
 	 */
 	public void insert(String insertQuery) {
 		log.info("[ToolDB] start insert");
+		Connection connection = null;
 		PreparedStatement ps = null;
 		try {
+			connection = getConnection(defaultDataSource);
 			ps = connection.prepareStatement(insertQuery);
 			ps.executeUpdate();
 		}
 		catch(Exception e) {
 			log.error("[ToolDB] *** EXCEPTION ***",e);
 		}
+		finally {
+			close(ps, connection);
+		}
 		log.info("[ToolDB] end insert");
 	}
 	
+	/**
+	 * Executes a parameterized insert/update/delete on the last datasource connected.
+	 * The prepared statement is kept in the cache of the pooled connection, so the sql is parsed only once
+	 * @param sql sql with ? placeholders, ie: insert into audit(user, action) values(?, ?)
+	 * @param params values of the placeholders, in order. null values are set with Types.NULL
+	 * @return number of rows modified, -1 if error
+	 */
+	public int executeUpdate(String sql, Object... params) {
+		return executeUpdateWithDataSource(defaultDataSource, sql, params);
+	}
+	
+	/**
+	 * Executes a parameterized insert/update/delete using the prepared statement cache
+	 * @param datasourceName name of the datasource
+	 * @param sql sql with ? placeholders, ie: insert into audit(user, action) values(?, ?)
+	 * @param params values of the placeholders, in order. null values are set with Types.NULL
+	 * @return number of rows modified, -1 if error
+	 */
+	public int executeUpdateWithDataSource(String datasourceName, String sql, Object... params) {
+		log.debug("[ToolDB] Executing "+sql);
+		int toReturn = -1;
+		DbConnectionPool pool = pools.get(datasourceName!=null ? datasourceName : "");
+		Connection connection = null;
+		PreparedStatement ps = null;
+		try {
+			if(pool==null) {
+				throw new SQLException("Datasource "+datasourceName+" not connected");
+			}
+			connection = pool.getConnection();
+			ps = pool.prepareCached(connection, sql);
+			bind(ps, params);
+			toReturn = ps.executeUpdate();
+			ps.clearParameters();
+		}
+		catch(Exception e) {
+			log.error("[ToolDB] *** EXCEPTION ***",e);
+		}
+		finally {
+			// the cached statements stay open with their connection
+			close(pool!=null && pool.isStatementCacheEnabled() ? null : ps, connection);
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Executes a query on the last datasource connected and passes the rows to the handler while they are read.
+	 * The rows are never kept in memory, so the query can return any number of rows
+	 * @param sql sql with ? placeholders
+	 * @param fetchSize number of rows the driver reads from the database at every round trip
+	 * @param handler receives the rows. If it returns false the query is stopped
+	 * @param params values of the placeholders, in order
+	 * @return number of rows passed to the handler, -1 if error
+	 */
+	public long query(String sql, int fetchSize, DbRowHandler handler, Object... params) {
+		return queryWithDataSource(defaultDataSource, sql, fetchSize, handler, params);
+	}
+	
+	/**
+	 * Executes a query with a forward only, read only cursor and passes the rows to the handler while they are read.
+	 * Result set, statement and connection are closed before returning, also if the handler fails
+	 * @param datasourceName name of the datasource
+	 * @param sql sql with ? placeholders
+	 * @param fetchSize number of rows the driver reads from the database at every round trip
+	 * @param handler receives the rows. If it returns false the query is stopped
+	 * @param params values of the placeholders, in order
+	 * @return number of rows passed to the handler, -1 if error
+	 */
+	public long queryWithDataSource(String datasourceName, String sql, int fetchSize, DbRowHandler handler, Object... params) {
+		log.debug("[ToolDB] Query "+sql);
+		long toReturn = 0;
+		Connection connection = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			connection = getConnection(datasourceName);
+			// some drivers (ie: PostgreSQL) use a server side cursor only inside a transaction.
+			// The pool rolls back and restores the autocommit when the connection goes back
+			connection.setAutoCommit(false);
+			ps = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			ps.setFetchSize(fetchSize);
+			bind(ps, params);
+			rs = ps.executeQuery();
+			rs.setFetchSize(fetchSize);
+			while(rs.next()) {
+				toReturn++;
+				if(!handler.handleRow(rs)) {
+					break;
+				}
+			}
+			log.debug("[ToolDB] Query returned "+toReturn+" rows");
+		}
+		catch(Exception e) {
+			log.error("[ToolDB] *** EXCEPTION ***",e);
+			toReturn = -1;
+		}
+		finally {
+			try {
+				if(rs!=null) {
+					rs.close();
+				}
+			}
+			catch(Exception e) {
+				log.error("[ToolDB] *** EXCEPTION ***",e);
+			}
+			close(ps, connection);
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Creates a writer that collects the rows of a statement and writes them in batches, one transaction for every batch
+	 * @param datasourceName name of the datasource
+	 * @param sql sql with ? placeholders, ie: insert into audit(user, action) values(?, ?)
+	 * @param batchSize number of rows of a batch
+	 * @param flushIntervalMillis maximum time a row waits before being written. 0 means only by size
+	 * @param listener receives the result of every batch, can be null
+	 * @return the writer, null if the datasource is not connected. Always call close on it when finished
+	 */
+	public DbBatchWriter createBatchWriter(String datasourceName, String sql, int batchSize, long flushIntervalMillis, DbBatchListener listener) {
+		DbConnectionPool pool = pools.get(datasourceName!=null ? datasourceName : "");
+		if(pool==null) {
+			log.error("[ToolDB] Datasource "+datasourceName+" not connected");
+			return null;
+		}
+		return new DbBatchWriter(pool, sql, batchSize, flushIntervalMillis, listener, log);
+	}
+	
+	/**
+	 * Enables the asynchronous mode for a datasource: insertAsync puts the rows in a bounded queue
+	 * and a few writer threads write them in batches
+	 * @param datasourceName name of the datasource
+	 * @param queueCapacity maximum number of rows waiting in the queue
+	 * @param writerThreads number of threads writing on the database
+	 * @param batchSize maximum number of rows written in one batch
+	 * @param backpressure what to do when the queue is full
+	 * @param spillFile file used with Backpressure.SPILL, can be null otherwise
+	 * @return the writer (with queue depth and lag counters), null if the datasource is not connected
+	 */
+	public synchronized DbAsyncWriter enableAsyncWriter(String datasourceName, int queueCapacity, int writerThreads, int batchSize, DbAsyncWriter.Backpressure backpressure, File spillFile) {
+		DbConnectionPool pool = pools.get(datasourceName!=null ? datasourceName : "");
+		if(pool==null) {
+			log.error("[ToolDB] Datasource "+datasourceName+" not connected");
+			return null;
+		}
+		DbAsyncWriter writer = asyncWriters.get(datasourceName);
+		if(writer==null) {
+			writer = new DbAsyncWriter(pool, queueCapacity, writerThreads, batchSize, backpressure, spillFile, log);
+			asyncWriters.put(datasourceName, writer);
+			log.info("[ToolDB] Asynchronous writer enabled for datasource "+datasourceName);
+		}
+		return writer;
+	}
+	
+	/**
+	 * @param millis maximum time disconnect waits for the asynchronous writers to empty their queues
+	 */
+	public void setAsyncShutdownTimeoutMillis(long millis) {
+		this.asyncShutdownTimeoutMillis = millis;
+	}
+	
+	/**
+	 * Queues a parameterized insert on the last datasource connected. If the asynchronous mode
+	 * is not enabled for the datasource, the insert is executed immediately
+	 * @param sql sql with ? placeholders, ie: insert into audit(user, action) values(?, ?)
+	 * @param params values of the placeholders, in order
+	 * @return true if queued or executed, false if dropped or failed
+	 */
+	public boolean insertAsync(String sql, Object... params) {
+		String datasourceName = defaultDataSource;
+		DbAsyncWriter writer = datasourceName!=null ? asyncWriters.get(datasourceName) : null;
+		if(writer!=null) {
+			return writer.enqueue(sql, params);
+		}
+		return executeUpdateWithDataSource(datasourceName, sql, params)>=0;
+	}
+	
+	private void bind(PreparedStatement ps, Object[] params) throws SQLException {
+		if(params==null) {
+			return;
+		}
+		for (int i = 0; i < params.length; i++) {
+			if(params[i]==null) {
+				ps.setNull(i+1, Types.NULL);
+			}
+			else {
+				ps.setObject(i+1, params[i]);
+			}
+		}
+	}
+	
+	private void close(PreparedStatement ps, Connection connection) {
+		try {
+			if(ps!=null) {
+				ps.close();
+			}
+		}
+		catch(Exception e) {
+			log.error("[ToolDB] *** EXCEPTION ***",e);
+		}
+		try {
+			if(connection!=null) {
+				connection.close();
+			}
+		}
+		catch(Exception e) {
+			log.error("[ToolDB] *** EXCEPTION ***",e);
+		}
+	}
+	
 }
@@ -0,0 +1,99 @@
+package ldap;
+
+import java.util.Arrays;
+
+/**
+ * Statistics of the credential checks made with the authentication pool
+ * The latency percentiles are computed on the last SAMPLES checks
+ * @author enrico guariento
+ *
+ */
+public class LdapAuthStatistics {
+
+	private static final int SAMPLES = 1024;
+
+	private long startTime = System.currentTimeMillis();
+	private long successfulChecks = 0;
+	private long failedChecks = 0;
+	private long[] latencies = new long[SAMPLES];
+	private int samples = 0;
+	private int next = 0;
+
+	/**
+	 * Records a credential check
+	 * @param success true if the credentials were valid
+	 * @param latencyNanos duration of the check in nanoseconds
+	 */
+	public synchronized void record(boolean success, long latencyNanos) {
+		if(success) {
+			successfulChecks++;
+		}
+		else {
+			failedChecks++;
+		}
+		latencies[next] = latencyNanos;
+		next = (next+1) % SAMPLES;
+		if(samples<SAMPLES) {
+			samples++;
+		}
+	}
+
+	public synchronized long getSuccessfulChecks() {
+		return successfulChecks;
+	}
+
+	public synchronized long getFailedChecks() {
+		return failedChecks;
+	}
+
+	/**
+	 * @return average number of checks per second since the creation or the last reset
+	 */
+	public synchronized double getChecksPerSecond() {
+		long elapsed = System.currentTimeMillis() - startTime;
+		if(elapsed<=0) {
+			return 0;
+		}
+		return (successfulChecks+failedChecks) * 1000.0 / elapsed;
+	}
+
+	/**
+	 * @return 99th percentile of the latency of the last checks, in milliseconds
+	 */
+	public double getP99LatencyMillis() {
+		return getLatencyPercentileMillis(99);
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return percentile of the latency of the last checks, in milliseconds. 0 if there are no checks
+	 */
+	public synchronized double getLatencyPercentileMillis(double percentile) {
+		if(samples==0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(latencies, samples);
+		Arrays.sort(sorted);
+		int index = (int)Math.ceil(percentile / 100.0 * samples) - 1;
+		index = Math.max(0, Math.min(samples-1, index));
+		return sorted[index] / 1000000.0;
+	}
+
+	/**
+	 * Clears all the counters
+	 */
+	public synchronized void reset() {
+		startTime = System.currentTimeMillis();
+		successfulChecks = 0;
+		failedChecks = 0;
+		samples = 0;
+		next = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "LdapAuthStatistics(successful="+successfulChecks+", failed="+failedChecks
+				+", checksPerSecond="+getChecksPerSecond()+", p99Millis="+getP99LatencyMillis()+")";
+	}
+
+}
@@ -1,27 +1,56 @@
 package ldap;
 
+import com.unboundid.ldap.sdk.GetEntryLDAPConnectionPoolHealthCheck;
 import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPConnectionPoolStatistics;
 import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SimpleBindRequest;
 
 /**
  * This class is the datasource for LDAP connection
+ * The connections bound with the service user are kept in a pool that is created at the first borrow.
+ * The credential checks use a second pool, sized separately, so they can't starve the searches
  * @author enrico guariento
  *
  */
 public class LdapDataSource {
-	
+
 	private String host;
 	private Integer port;
 	private String userDn;
 	private String userPassword;
-	
+	private LdapPoolConfig poolConfig;
+	private LdapPoolConfig authPoolConfig;
+	private LDAPConnectionPool pool;
+	private LDAPConnectionPool authPool;
+	private LdapAuthStatistics authStatistics = new LdapAuthStatistics();
+
 	public LdapDataSource(String host, int port, String userDn, String userPassword) throws LDAPException {
+		this(host, port, userDn, userPassword, null, null);
+	}
+
+	/**
+	 * @param poolConfig configuration of the connection pool. If null, the default values are used
+	 */
+	public LdapDataSource(String host, int port, String userDn, String userPassword, LdapPoolConfig poolConfig) throws LDAPException {
+		this(host, port, userDn, userPassword, poolConfig, null);
+	}
+
+	/**
+	 * @param poolConfig configuration of the connection pool. If null, the default values are used
+	 * @param authPoolConfig configuration of the pool used by authenticate. If null, the default values are used
+	 */
+	public LdapDataSource(String host, int port, String userDn, String userPassword, LdapPoolConfig poolConfig, LdapPoolConfig authPoolConfig) throws LDAPException {
 		this.host = host;
 		this.port = port;
 		this.userDn = userDn;
 		this.userPassword = userPassword;
+		this.poolConfig = poolConfig!=null ? poolConfig : new LdapPoolConfig();
+		this.authPoolConfig = authPoolConfig!=null ? authPoolConfig : new LdapPoolConfig();
 	}
-	
+
 	/**
 	 * @return single connection to ldap. This does not use the connection pool so you need to close it
 	 * @throws LDAPException
@@ -29,7 +58,42 @@ public class LdapDataSource {
 	public LDAPConnection getConnection() throws LDAPException {
 		return new LDAPConnection(host, port, userDn, userPassword);
 	}
-	
+
+	/**
+	 * Takes a connection from the pool. Always give it back with releaseConnection
+	 * @return connection bound with the service user
+	 * @throws LDAPException if no connection is available within the borrow timeout
+	 */
+	public LDAPConnection borrowConnection() throws LDAPException {
+		return getPool().getConnection();
+	}
+
+	/**
+	 * Gives back to the pool a connection taken with borrowConnection
+	 * @param connection connection to release
+	 */
+	public void releaseConnection(LDAPConnection connection) {
+		release(connection, null);
+	}
+
+	/**
+	 * Gives back to the pool a connection whose operation failed.
+	 * If the exception says the connection is no longer usable, the connection is closed and replaced
+	 * @param connection connection to release
+	 * @param e exception thrown while using the connection
+	 */
+	public void releaseConnectionAfterException(LDAPConnection connection, Exception e) {
+		release(connection, e instanceof LDAPException ? (LDAPException)e : null);
+	}
+
+	/**
+	 * @return statistics of the pool, null if the pool was never used
+	 */
+	public LDAPConnectionPoolStatistics getPoolStatistics() {
+		LDAPConnectionPool current = getPoolOrNull();
+		return current!=null ? current.getConnectionPoolStatistics() : null;
+	}
+
 	/**
 	 * Create a connection with a specified dn. It's the same as getConnection but it uses passed parameters
 	 * You can check if the user has LDAP access. Always close the returned  connection
@@ -41,7 +105,68 @@ public class LdapDataSource {
 	public LDAPConnection bindUser(String userDn, String password) throws LDAPException {
 		return new LDAPConnection(host, port, userDn, password);
 	}
-	
+
+	/**
+	 * Checks the credentials of a user on a connection of the authentication pool.
+	 * The connection is bound as the user and then bound again with the service user
+	 * (or anonymously, see LdapPoolConfig.isRevertToServiceUser) before going back to the pool
+	 * @param userDn dn of the user who needs to be verified
+	 * @param password password of the user
+	 * @throws LDAPException if the credentials are not valid or the directory is not reachable
+	 */
+	public void authenticate(String userDn, String password) throws LDAPException {
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			// an empty password would be an unauthenticated bind, which always succeeds
+			if(password==null || password.length()==0) {
+				throw new LDAPException(ResultCode.INVALID_CREDENTIALS, "Empty password for "+userDn);
+			}
+			LDAPConnectionPool current = getAuthPool();
+			LDAPConnection connection = current.getConnection();
+			LDAPException bindException = null;
+			try {
+				connection.bind(userDn, password);
+				success = true;
+			} catch (LDAPException e) {
+				bindException = e;
+			}
+			try {
+				if(authPoolConfig.isRevertToServiceUser()) {
+					connection.bind(this.userDn, this.userPassword);
+				}
+				else {
+					connection.bind(new SimpleBindRequest());
+				}
+				current.releaseConnection(connection);
+			} catch (LDAPException e) {
+				// the connection is in an unknown state, let the pool replace it
+				current.releaseDefunctConnection(connection);
+			}
+			if(bindException!=null) {
+				throw bindException;
+			}
+		}
+		finally {
+			authStatistics.record(success, System.nanoTime()-start);
+		}
+	}
+
+	/**
+	 * @return statistics of the credential checks (checks per second, p99 latency)
+	 */
+	public LdapAuthStatistics getAuthStatistics() {
+		return authStatistics;
+	}
+
+	/**
+	 * @return statistics of the authentication pool, null if the pool was never used
+	 */
+	public LDAPConnectionPoolStatistics getAuthPoolStatistics() {
+		LDAPConnectionPool current = getAuthPoolOrNull();
+		return current!=null ? current.getConnectionPoolStatistics() : null;
+	}
+
 	/**
 	 * This method closes a connection
 	 * @param connection connection to close
@@ -52,4 +177,80 @@ public class LdapDataSource {
 		}
 	}
 
+	/**
+	 * Closes all the connections of the pools. Always call this when finished
+	 */
+	public synchronized void close() {
+		if(pool!=null) {
+			pool.close();
+			pool = null;
+		}
+		if(authPool!=null) {
+			authPool.close();
+			authPool = null;
+		}
+	}
+
+	private void release(LDAPConnection connection, LDAPException e) {
+		if(connection==null) {
+			return;
+		}
+		LDAPConnectionPool current = getPoolOrNull();
+		if(current==null) {
+			// the pool has been closed in the meantime
+			connection.close();
+		}
+		else if(e!=null) {
+			current.releaseConnectionAfterException(connection, e);
+		}
+		else {
+			current.releaseConnection(connection);
+		}
+	}
+
+	private synchronized LDAPConnectionPool getPoolOrNull() {
+		return pool;
+	}
+
+	private synchronized LDAPConnectionPool getAuthPoolOrNull() {
+		return authPool;
+	}
+
+	private synchronized LDAPConnectionPool getPool() throws LDAPException {
+		if(pool==null) {
+			pool = createPool(getConnection(), poolConfig, "ToolLDAP-"+host+":"+port);
+		}
+		return pool;
+	}
+
+	private synchronized LDAPConnectionPool getAuthPool() throws LDAPException {
+		if(authPool==null) {
+			LDAPConnection first = authPoolConfig.isRevertToServiceUser() ? getConnection() : new LDAPConnection(host, port);
+			authPool = createPool(first, authPoolConfig, "ToolLDAP-auth-"+host+":"+port);
+		}
+		return authPool;
+	}
+
+	private LDAPConnectionPool createPool(LDAPConnection first, LdapPoolConfig config, String name) throws LDAPException {
+		int min = Math.max(1, config.getMinConnections());
+		int max = Math.max(min, config.getMaxConnections());
+		LDAPConnectionPool toReturn = null;
+		try {
+			toReturn = new LDAPConnectionPool(first, min, max);
+		} catch (LDAPException e) {
+			first.close();
+			throw e;
+		}
+		toReturn.setConnectionPoolName(name);
+		// bounded pool: wait for a free connection instead of opening a new one
+		toReturn.setCreateIfNecessary(false);
+		toReturn.setMaxWaitTimeMillis(config.getBorrowTimeoutMillis());
+		toReturn.setMaxConnectionAgeMillis(config.getMaxConnectionAgeMillis());
+		// read the root DSE in background, after exceptions and optionally on borrow
+		toReturn.setHealthCheck(new GetEntryLDAPConnectionPoolHealthCheck("", config.getHealthCheckMaxResponseMillis(),
+				false, config.isValidateOnBorrow(), false, true, true));
+		toReturn.setHealthCheckIntervalMillis(config.getHealthCheckIntervalMillis());
+		return toReturn;
+	}
+
 }
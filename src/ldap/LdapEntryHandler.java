@@ -0,0 +1,19 @@
+package ldap;
+
+import java.util.Map;
+
+/**
+ * Callback used by ToolLDAP.pagedSearch. It receives the entries one by one as they arrive from the directory
+ * @author enrico guariento
+ *
+ */
+public interface LdapEntryHandler {
+
+	/**
+	 * @param dn dn of the entry
+	 * @param attributes Map: key=attribute name, value=array with attribute values. Only the requested attributes are present
+	 * @return true to continue with the next entry, false to stop the search
+	 */
+	boolean handleEntry(String dn, Map<String, String[]> attributes);
+
+}
@@ -0,0 +1,76 @@
+package ldap;
+
+import com.unboundid.ldap.sdk.ResultCode;
+
+/**
+ * Result of a single entry of ToolLDAP.bulkReplaceAttributes
+ * @author enrico guariento
+ *
+ */
+public class LdapModifyResult {
+
+	private final String entryDN;
+	private final ResultCode resultCode;
+	private final String message;
+	private final boolean outcomeUnknown;
+
+	public LdapModifyResult(String entryDN, ResultCode resultCode, String message) {
+		this(entryDN, resultCode, message, false);
+	}
+
+	public LdapModifyResult(String entryDN, ResultCode resultCode, String message, boolean outcomeUnknown) {
+		this.entryDN = entryDN;
+		this.resultCode = resultCode;
+		this.message = message;
+		this.outcomeUnknown = outcomeUnknown;
+	}
+
+	/**
+	 * @return dn of the modified entry
+	 */
+	public String getEntryDN() {
+		return entryDN;
+	}
+
+	/**
+	 * @return result code returned by the server. null if the modification was not executed
+	 */
+	public ResultCode getResultCode() {
+		return resultCode;
+	}
+
+	/**
+	 * @return diagnostic message of the server or description of the error. null if none
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return true if the modification was applied
+	 */
+	public boolean isSuccess() {
+		return ResultCode.SUCCESS.equals(resultCode);
+	}
+
+	/**
+	 * @return false if the modification was not sent to the server (ie: stopped after an error)
+	 */
+	public boolean isExecuted() {
+		return resultCode!=null;
+	}
+
+	/**
+	 * @return true if the modification was sent but no result arrived in time: the request was abandoned
+	 * and the entry may or may not have been modified
+	 */
+	public boolean isOutcomeUnknown() {
+		return outcomeUnknown;
+	}
+
+	@Override
+	public String toString() {
+		return "LdapModifyResult(dn="+entryDN+", resultCode="+resultCode+", message="+message+(outcomeUnknown ? ", outcome unknown" : "")+")";
+	}
+
+}
@@ -0,0 +1,110 @@
+package ldap;
+
+/**
+ * Configuration of the LDAP connection pool used by LdapDataSource
+ * All the times are in milliseconds. If not set, the default values are used
+ * @author enrico guariento
+ *
+ */
+public class LdapPoolConfig {
+
+	private int minConnections = 1;
+	private int maxConnections = 10;
+	private long maxConnectionAgeMillis = 30L * 60L * 1000L;
+	private long borrowTimeoutMillis = 5000L;
+	private long healthCheckIntervalMillis = 60000L;
+	private long healthCheckMaxResponseMillis = 5000L;
+	private boolean validateOnBorrow = false;
+	private boolean revertToServiceUser = true;
+
+	/**
+	 * @return number of connections opened when the pool is created
+	 */
+	public int getMinConnections() {
+		return minConnections;
+	}
+
+	public void setMinConnections(int minConnections) {
+		this.minConnections = minConnections;
+	}
+
+	/**
+	 * @return maximum number of connections kept by the pool
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * @return age after which a connection is closed and replaced. 0 means no limit
+	 */
+	public long getMaxConnectionAgeMillis() {
+		return maxConnectionAgeMillis;
+	}
+
+	public void setMaxConnectionAgeMillis(long maxConnectionAgeMillis) {
+		this.maxConnectionAgeMillis = maxConnectionAgeMillis;
+	}
+
+	/**
+	 * @return time to wait for a free connection before failing
+	 */
+	public long getBorrowTimeoutMillis() {
+		return borrowTimeoutMillis;
+	}
+
+	public void setBorrowTimeoutMillis(long borrowTimeoutMillis) {
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+	}
+
+	/**
+	 * @return interval of the background validation of the idle connections
+	 */
+	public long getHealthCheckIntervalMillis() {
+		return healthCheckIntervalMillis;
+	}
+
+	public void setHealthCheckIntervalMillis(long healthCheckIntervalMillis) {
+		this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+	}
+
+	/**
+	 * @return maximum time the root DSE read of the health check can take
+	 */
+	public long getHealthCheckMaxResponseMillis() {
+		return healthCheckMaxResponseMillis;
+	}
+
+	public void setHealthCheckMaxResponseMillis(long healthCheckMaxResponseMillis) {
+		this.healthCheckMaxResponseMillis = healthCheckMaxResponseMillis;
+	}
+
+	/**
+	 * @return true if every connection is validated before being returned by the pool
+	 */
+	public boolean isValidateOnBorrow() {
+		return validateOnBorrow;
+	}
+
+	public void setValidateOnBorrow(boolean validateOnBorrow) {
+		this.validateOnBorrow = validateOnBorrow;
+	}
+
+	/**
+	 * Used only by the authentication pool
+	 * @return true if after a credential check the connection is bound again with the service user,
+	 * false if the connections of the pool are kept anonymous
+	 */
+	public boolean isRevertToServiceUser() {
+		return revertToServiceUser;
+	}
+
+	public void setRevertToServiceUser(boolean revertToServiceUser) {
+		this.revertToServiceUser = revertToServiceUser;
+	}
+
+}
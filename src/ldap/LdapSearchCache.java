@@ -0,0 +1,232 @@
+package ldap;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.SearchScope;
+
+/**
+ * Bounded LRU cache for the results of ToolLDAP.genericSearch
+ * The key is (base dn, scope, filter, requested attributes), every entry expires after the TTL
+ * @author enrico guariento
+ *
+ */
+public class LdapSearchCache {
+
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final LinkedHashMap<Key, CachedResult> entries;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long generation = 0;
+
+	/**
+	 * @param maxEntries maximum number of results kept. The least recently used is evicted first
+	 * @param ttlMillis time to live of every result in milliseconds
+	 */
+	public LdapSearchCache(int maxEntries, long ttlMillis) {
+		this.maxEntries = Math.max(1, maxEntries);
+		this.ttlMillis = ttlMillis;
+		// access order, so the eldest entry is the least recently used
+		this.entries = new LinkedHashMap<Key, CachedResult>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, CachedResult> eldest) {
+				if(size()>LdapSearchCache.this.maxEntries) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return a copy of the cached result, null if not present or expired
+	 */
+	public synchronized Map<String, String[]> get(String searchDn, SearchScope scope, String filter, String[] attributes) {
+		Key key = new Key(searchDn, scope, filter, attributes);
+		CachedResult cached = entries.get(key);
+		if(cached!=null && cached.expiration<System.currentTimeMillis()) {
+			entries.remove(key);
+			evictions++;
+			cached = null;
+		}
+		if(cached==null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return copy(cached.attributes);
+	}
+
+	/**
+	 * @return counter incremented at every invalidation. Read it before searching and pass it to put
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @param entryDn dn of the entry found, null if the search returned nothing
+	 * @param result attributes of the entry found
+	 * @param generation value of getGeneration read before the search. If an invalidation happened
+	 * in the meantime the result may be stale and is not stored
+	 */
+	public synchronized void put(String searchDn, SearchScope scope, String filter, String[] attributes, String entryDn, Map<String, String[]> result, long generation) {
+		if(generation!=this.generation) {
+			return;
+		}
+		entries.put(new Key(searchDn, scope, filter, attributes), new CachedResult(normalize(entryDn), normalize(searchDn), copy(result), System.currentTimeMillis()+ttlMillis));
+	}
+
+	/**
+	 * Removes the results that returned the entry, and the empty results of the searches that
+	 * could now find it (the modification may have made the entry match their filter)
+	 * @param entryDn dn of the modified entry
+	 */
+	public synchronized void invalidate(String entryDn) {
+		generation++;
+		String normalized = normalize(entryDn);
+		Iterator<CachedResult> it = entries.values().iterator();
+		while(it.hasNext()) {
+			CachedResult cached = it.next();
+			if(normalized.equals(cached.entryDn)) {
+				it.remove();
+			}
+			else if(cached.entryDn==null && isDescendantOrSelf(entryDn, cached.searchDn)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes all the results
+	 */
+	public synchronized void clear() {
+		generation++;
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "LdapSearchCache(size="+entries.size()+", hits="+hits+", misses="+misses+", evictions="+evictions+")";
+	}
+
+	private static boolean isDescendantOrSelf(String entryDn, String searchDn) {
+		try {
+			return new DN(entryDn).isDescendantOf(searchDn, true);
+		} catch (LDAPException e) {
+			// not parsable, be conservative
+			return true;
+		}
+	}
+
+	private static String normalize(String dn) {
+		if(dn==null) {
+			return null;
+		}
+		try {
+			return DN.normalize(dn);
+		} catch (LDAPException e) {
+			return dn.toLowerCase();
+		}
+	}
+
+	private static Map<String, String[]> copy(Map<String, String[]> source) {
+		Map<String, String[]> toReturn = new HashMap<String, String[]>();
+		for(Map.Entry<String, String[]> entry : source.entrySet()) {
+			toReturn.put(entry.getKey(), entry.getValue()!=null ? entry.getValue().clone() : null);
+		}
+		return toReturn;
+	}
+
+	private static class CachedResult {
+		private final String entryDn;
+		private final String searchDn;
+		private final Map<String, String[]> attributes;
+		private final long expiration;
+
+		private CachedResult(String entryDn, String searchDn, Map<String, String[]> attributes, long expiration) {
+			this.entryDn = entryDn;
+			this.searchDn = searchDn;
+			this.attributes = attributes;
+			this.expiration = expiration;
+		}
+	}
+
+	/**
+	 * Key of a search. Null values are accepted, so the lookup before the search never throws:
+	 * an invalid search is reported by the search itself
+	 */
+	private static class Key {
+		private static final Comparator<String> NULLS_FIRST = new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				if(a==null || b==null) {
+					return a==null ? (b==null ? 0 : -1) : 1;
+				}
+				return a.compareTo(b);
+			}
+		};
+		private final String searchDn;
+		private final int scope;
+		private final String filter;
+		private final String[] attributes;
+
+		private Key(String searchDn, SearchScope scope, String filter, String[] attributes) {
+			this.searchDn = normalize(searchDn);
+			this.scope = scope!=null ? scope.intValue() : -1;
+			this.filter = filter;
+			String[] sorted = attributes!=null ? attributes.clone() : new String[0];
+			for (int i = 0; i < sorted.length; i++) {
+				if(sorted[i]!=null) {
+					sorted[i] = sorted[i].toLowerCase();
+				}
+			}
+			Arrays.sort(sorted, NULLS_FIRST);
+			this.attributes = sorted;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key)o;
+			return scope==other.scope && Objects.equals(searchDn, other.searchDn) && Objects.equals(filter, other.filter)
+					&& Arrays.equals(attributes, other.attributes);
+		}
+
+		@Override
+		public int hashCode() {
+			return ((Objects.hashCode(searchDn)*31 + scope)*31 + Objects.hashCode(filter))*31 + Arrays.hashCode(attributes);
+		}
+	}
+
+}
@@ -4,19 +4,31 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.apache.log4j.Logger;
 
 import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.AsyncResultListener;
 import com.unboundid.ldap.sdk.Attribute;
 import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
 import com.unboundid.ldap.sdk.LDAPResult;
 import com.unboundid.ldap.sdk.Modification;
 import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ModifyRequest;
 import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
 import com.unboundid.ldap.sdk.SearchResult;
 import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
+import com.unboundid.ldap.sdk.SearchResultReference;
 import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
 
 /**
  * This class contains methods for LDAP access
@@ -29,13 +41,14 @@ public class ToolLDAP {
 	private static Logger log = Logger.getLogger(ToolLDAP.class);
 	private static ToolLDAP instance;
 	private LdapDataSource dataSource;
+	private volatile LdapSearchCache searchCache;
 	
-	private ToolLDAP(String host, int port, String userDn, String userPassword, Logger logger) {
+	private ToolLDAP(String host, int port, String userDn, String userPassword, LdapPoolConfig poolConfig, LdapPoolConfig authPoolConfig, Logger logger) {
 		if(logger!=null) {
 			log = logger;
 		}
 		try {
-			dataSource = new LdapDataSource(host, port, userDn, userPassword);
+			dataSource = new LdapDataSource(host, port, userDn, userPassword, poolConfig, authPoolConfig);
 			log.info("[ToolLDAP] ToolLDAP initialized");
 		} catch (Exception e) {
 			log.error("[ToolLDAP] *** EXCEPTION ***",e);
@@ -47,11 +60,59 @@ public class ToolLDAP {
 	}
 	
 	public static ToolLDAP getInstance(String host, int port, String userDn, String userPassword, Logger logger) {
+		return getInstance(host, port, userDn, userPassword, null, logger);
+	}
+	
+	/**
+	 * @param poolConfig configuration of the connection pool. If null, the default values are used
+	 */
+	public static ToolLDAP getInstance(String host, int port, String userDn, String userPassword, LdapPoolConfig poolConfig, Logger logger) {
+		return getInstance(host, port, userDn, userPassword, poolConfig, null, logger);
+	}
+	
+	/**
+	 * @param poolConfig configuration of the connection pool. If null, the default values are used
+	 * @param authPoolConfig configuration of the pool used by bindUser. If null, the default values are used
+	 */
+	public static ToolLDAP getInstance(String host, int port, String userDn, String userPassword, LdapPoolConfig poolConfig, LdapPoolConfig authPoolConfig, Logger logger) {
 		if(instance==null) {
-			instance = new ToolLDAP(host, port, userDn, userPassword, logger);
+			instance = new ToolLDAP(host, port, userDn, userPassword, poolConfig, authPoolConfig, logger);
 		}
 		return instance;
 	}
+	
+	/**
+	 * Closes the pooled connections. Always call this when finished
+	 */
+	public void close() {
+		log.info("[ToolLDAP] Closing the connection pool");
+		dataSource.close();
+	}
+
+	/**
+	 * Enables the cache of the genericSearch results. The modifications made with this class
+	 * remove the cached results of the modified entry
+	 * @param maxEntries maximum number of results kept, the least recently used is evicted first
+	 * @param ttlMillis time to live of every result in milliseconds
+	 */
+	public void enableSearchCache(int maxEntries, long ttlMillis) {
+		searchCache = new LdapSearchCache(maxEntries, ttlMillis);
+		log.info("[ToolLDAP] Search cache enabled: "+maxEntries+" entries, ttl "+ttlMillis+" ms");
+	}
+	
+	/**
+	 * Disables and clears the cache of the genericSearch results
+	 */
+	public void disableSearchCache() {
+		searchCache = null;
+	}
+	
+	/**
+	 * @return the search cache (with hit/miss/eviction counters), null if not enabled
+	 */
+	public LdapSearchCache getSearchCache() {
+		return searchCache;
+	}
 
 	/**
 	 * Generic method for search
@@ -61,16 +122,41 @@ public class ToolLDAP {
 	 * @return Map: key=attribute name, value=array with attribute values
 	 */
 	public Map<String, String[]> genericSearch(String searchDn, SearchScope scope, String filter) {
+		return genericSearch(searchDn, scope, filter, new String[0]);
+	}
+	
+	/**
+	 * Generic method for search, returning only the requested attributes
+	 * @param searchDn root to start for the search
+	 * @param scope scope of the search
+	 * @param filter ie: (uid=xxxx)
+	 * @param attributes names of the attributes to return. If empty, all the user attributes are returned
+	 * @return Map: key=attribute name, value=array with attribute values
+	 */
+	public Map<String, String[]> genericSearch(String searchDn, SearchScope scope, String filter, String... attributes) {
+		LdapSearchCache cache = searchCache;
+		long generation = 0;
+		if(cache!=null) {
+			generation = cache.getGeneration();
+			Map<String, String[]> cached = cache.get(searchDn, scope, filter, attributes);
+			if(cached!=null) {
+				log.debug("[ToolLDAP] Search from "+searchDn+" with filter "+filter+" found in cache");
+				return cached;
+			}
+		}
 		Map<String, String[]> toReturn = new HashMap<String, String[]>();
+		String entryDn = null;
+		boolean completed = false;
 		LDAPConnection connection = null;
 		log.info("[ToolLDAP] Search from "+searchDn+" with scope "+scope.getName()+" and filter "+filter);
 		try {
-			// Get the connection from the datasource
-			connection = dataSource.getConnection();
-			SearchResult searchResult = connection.search(searchDn, scope, filter);
+			// Borrow the connection from the pool
+			connection = dataSource.borrowConnection();
+			SearchResult searchResult = connection.search(searchDn, scope, filter, attributes);
 			if(searchResult!=null && searchResult.getSearchEntries()!=null && searchResult.getSearchEntries().size()>0) {
 				// There is always one result
 				SearchResultEntry sre = searchResult.getSearchEntries().get(0);
+				entryDn = sre.getDN();
 				log.debug("[ToolLDAP] Found attribute "+sre.toString());
 				for(Attribute a : sre.getAttributes()) {
 					String[] values = a.getValues();
@@ -81,11 +167,70 @@ public class ToolLDAP {
 					}
 				}
 			}
+			completed = true;
 		} catch (Exception e) {
 			log.error("[ToolLDAP] *** EXCEPTION ***",e);
+			dataSource.releaseConnectionAfterException(connection, e);
+			connection = null;
 		}
 		finally {
-			dataSource.destroyConnection(connection);
+			dataSource.releaseConnection(connection);
+		}
+		// errors are not cached
+		if(cache!=null && completed) {
+			cache.put(searchDn, scope, filter, attributes, entryDn, toReturn, generation);
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Search that streams all the matching entries to the handler, using the Simple Paged Results control.
+	 * The entries are not kept in memory: every entry is passed to the handler as soon as it arrives
+	 * @param searchDn root to start for the search
+	 * @param scope scope of the search
+	 * @param filter ie: (objectClass=person)
+	 * @param pageSize number of entries requested to the server for every page
+	 * @param handler receives the entries. If it returns false the search is stopped
+	 * @param attributes names of the attributes to return. If empty, all the user attributes are returned
+	 * @return number of entries passed to the handler, -1 if error
+	 */
+	public long pagedSearch(String searchDn, SearchScope scope, String filter, int pageSize, LdapEntryHandler handler, String... attributes) {
+		long toReturn = -1;
+		LDAPConnection connection = null;
+		log.info("[ToolLDAP] Paged search from "+searchDn+" with scope "+scope.getName()+", filter "+filter+" and page size "+pageSize);
+		try {
+			// Borrow the connection from the pool
+			connection = dataSource.borrowConnection();
+			EntryListener listener = new EntryListener(handler);
+			SearchRequest request = new SearchRequest(listener, searchDn, scope, filter, attributes);
+			ASN1OctetString cookie = null;
+			do {
+				request.setControls(new SimplePagedResultsControl(pageSize, cookie));
+				SearchResult searchResult = connection.search(request);
+				SimplePagedResultsControl response = SimplePagedResultsControl.get(searchResult);
+				cookie = null;
+				if(response!=null && response.moreResultsToReturn()) {
+					cookie = response.getCookie();
+				}
+			} while(cookie!=null && !listener.stopped);
+			if(cookie!=null) {
+				// stopped by the handler: a page of size 0 tells the server to free the paging state
+				request.setControls(new SimplePagedResultsControl(0, cookie));
+				connection.search(request);
+			}
+			if(listener.error!=null) {
+				throw listener.error;
+			}
+			toReturn = listener.count;
+			log.info("[ToolLDAP] Paged search returned "+toReturn+" entries");
+		} catch (Exception e) {
+			log.error("[ToolLDAP] *** EXCEPTION ***",e);
+			dataSource.releaseConnectionAfterException(connection, e);
+			connection = null;
+			toReturn = -1;
+		}
+		finally {
+			dataSource.releaseConnection(connection);
 		}
 		return toReturn;
 	}
@@ -101,8 +246,8 @@ public class ToolLDAP {
 		boolean toReturn = false;
 		LDAPConnection connection = null;
 		try {
-			// get the connection from the datasource
-			connection = dataSource.getConnection();
+			// borrow the connection from the pool
+			connection = dataSource.borrowConnection();
 			Modification modifica = new Modification(ModificationType.REPLACE, attributeName, newValue);
 			LDAPResult result = connection.modify(entryDN, modifica);
 			if(result!=null && result.getResultCode().equals(ResultCode.SUCCESS)) {
@@ -110,33 +255,39 @@ public class ToolLDAP {
 			}
 		} catch (Exception e) {
 			log.error("[ToolLDAP] *** EXCEPTION ***",e);
+			dataSource.releaseConnectionAfterException(connection, e);
+			connection = null;
 		}
 		finally {
-			dataSource.destroyConnection(connection);
+			dataSource.releaseConnection(connection);
+			invalidateCache(entryDN);
 		}
 		return toReturn;
 	}
 	
 	/**
-	 * Binds a user
+	 * Binds a user. The check is made on a connection of the authentication pool
 	 * @param username dn of the user to bind
 	 * @param password password of the user
 	 * @return OK or message exception
 	 */
 	public String bindUser(String userDn, String password) {
 		String toReturn = "OK";
-		LDAPConnection connection = null;
 		try {
-			connection = dataSource.bindUser(userDn, password);
+			dataSource.authenticate(userDn, password);
 		} catch (Exception e) {
 			log.error("[ToolLDAP] *** EXCEPTION ***",e);
 			toReturn = e.toString();
 		}
-		finally {
-			dataSource.destroyConnection(connection);
-		}
 		return toReturn;
 	}
+	
+	/**
+	 * @return statistics of the bindUser checks (checks per second, p99 latency)
+	 */
+	public LdapAuthStatistics getAuthStatistics() {
+		return dataSource.getAuthStatistics();
+	}
 
 	/**
 	 * This method modifies (REPLACE) the attributes sent in the map
@@ -148,20 +299,10 @@ public class ToolLDAP {
 		boolean toReturn = false;
 		LDAPConnection connection = null;
 		try {
-			// get the connection from the datasource
-			connection = dataSource.getConnection();
+			// borrow the connection from the pool
+			connection = dataSource.borrowConnection();
 			if(modifications.size()>0) {
-				List<Modification> modifiche = new ArrayList<Modification>();
-				for(String attribute : modifications.keySet()) {
-					if(modifications.get(attribute)!=null && modifications.get(attribute).length>0) {
-						ASN1OctetString[] temp = new ASN1OctetString[modifications.get(attribute).length];
-						for (int i = 0; i < modifications.get(attribute).length; i++) {
-							temp[i] = new ASN1OctetString(modifications.get(attribute)[i]);
-						}
-						Modification modifica = new Modification(ModificationType.REPLACE, attribute, temp);
-						modifiche.add(modifica);
-					}
-				}
+				List<Modification> modifiche = buildReplaceModifications(modifications);
 				
 				// apply the modifications
 				if(modifiche.size()>0) {
@@ -173,11 +314,288 @@ public class ToolLDAP {
 			}
 		} catch (Exception e) {
 			log.error("[ToolLDAP] *** EXCEPTION ***",e);
+			dataSource.releaseConnectionAfterException(connection, e);
+			connection = null;
 		}
 		finally {
-			dataSource.destroyConnection(connection);
+			dataSource.releaseConnection(connection);
+			invalidateCache(entryDN);
 		}
 		return toReturn;
 	}
+	
+	/**
+	 * Modifies (REPLACE) many entries using asynchronous requests: several modifications are in flight
+	 * on every connection at the same time, without waiting for the previous result
+	 * @param modifications Map: key=dn of the entry, value=Map with key=attribute name, value=array with attribute new values.
+	 * Use a LinkedHashMap to keep the order of execution
+	 * @param connections number of pooled connections to use
+	 * @param maxInFlightPerConnection maximum number of requests waiting for the result on every connection
+	 * @param stopOnError if true no more modifications are sent after the first error, otherwise all are sent
+	 * @return one result for every entry, in the same order of the map. The requests without a result within
+	 * the response timeout of the connection are abandoned and their outcome is unknown (LdapModifyResult.isOutcomeUnknown)
+	 */
+	public List<LdapModifyResult> bulkReplaceAttributes(Map<String, Map<String, String[]>> modifications, int connections, int maxInFlightPerConnection, boolean stopOnError) {
+		List<String> dns = new ArrayList<String>(modifications.keySet());
+		AtomicReferenceArray<LdapModifyResult> results = new AtomicReferenceArray<LdapModifyResult>(dns.size());
+		AsyncRequestID[] requests = new AsyncRequestID[dns.size()];
+		int[] connectionOf = new int[dns.size()];
+		int inFlight = Math.max(1, maxInFlightPerConnection);
+		AtomicBoolean stop = new AtomicBoolean(false);
+		List<LDAPConnection> borrowed = new ArrayList<LDAPConnection>();
+		List<Semaphore> permits = new ArrayList<Semaphore>();
+		List<LDAPException> failures = new ArrayList<LDAPException>();
+		log.info("[ToolLDAP] Bulk modification of "+dns.size()+" entries");
+		try {
+			// borrow the connections from the pool, go on with the ones available
+			for (int i = 0; i < Math.max(1, connections); i++) {
+				try {
+					borrowed.add(dataSource.borrowConnection());
+					permits.add(new Semaphore(inFlight));
+					failures.add(null);
+				} catch (LDAPException e) {
+					if(borrowed.isEmpty()) {
+						throw e;
+					}
+					log.warn("[ToolLDAP] Only "+borrowed.size()+" connections available for the bulk modification");
+					break;
+				}
+			}
+			int next = 0;
+			for (int i = 0; i < dns.size() && !stop.get(); i++) {
+				String dn = dns.get(i);
+				List<Modification> modifiche = buildReplaceModifications(modifications.get(dn));
+				if(modifiche.isEmpty()) {
+					results.set(i, new LdapModifyResult(dn, ResultCode.PARAM_ERROR, "No values to replace"));
+					if(stopOnError) {
+						stop.set(true);
+					}
+					continue;
+				}
+				// round robin on the connections still working
+				int c = -1;
+				for (int j = 0; j < borrowed.size(); j++) {
+					int candidate = (next+j) % borrowed.size();
+					if(failures.get(candidate)==null) {
+						c = candidate;
+						break;
+					}
+				}
+				if(c<0) {
+					log.error("[ToolLDAP] No working connection left for the bulk modification");
+					break;
+				}
+				next = c+1;
+				LDAPConnection connection = borrowed.get(c);
+				if(!acquire(permits.get(c), 1, connection, System.currentTimeMillis())) {
+					// no result for the requests in flight: the connection is left out and the entry goes to another one
+					failures.set(c, abandonOutstanding(c, connection, dns, results, requests, connectionOf));
+					i--;
+					continue;
+				}
+				try {
+					requests[i] = connection.asyncModify(new ModifyRequest(dn, modifiche), new BulkModifyListener(results, i, dn, permits.get(c), stop, stopOnError));
+					connectionOf[i] = c;
+				} catch (LDAPException e) {
+					log.error("[ToolLDAP] *** EXCEPTION ***",e);
+					permits.get(c).release();
+					failures.set(c, e);
+					results.set(i, new LdapModifyResult(dn, e.getResultCode(), e.getMessage()));
+					if(stopOnError) {
+						stop.set(true);
+					}
+				}
+			}
+			// wait for the requests still in flight, the ones without a result are abandoned below
+			long start = System.currentTimeMillis();
+			for (int c = 0; c < borrowed.size(); c++) {
+				if(failures.get(c)==null && acquire(permits.get(c), inFlight, borrowed.get(c), start)) {
+					permits.get(c).release(inFlight);
+				}
+			}
+		} catch (InterruptedException e) {
+			log.error("[ToolLDAP] *** EXCEPTION ***",e);
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			log.error("[ToolLDAP] *** EXCEPTION ***",e);
+		}
+		finally {
+			for (int i = 0; i < borrowed.size(); i++) {
+				// a connection goes back to the pool only without requests in flight
+				LDAPException abandoned = abandonOutstanding(i, borrowed.get(i), dns, results, requests, connectionOf);
+				if(failures.get(i)==null) {
+					failures.set(i, abandoned);
+				}
+				if(failures.get(i)!=null) {
+					dataSource.releaseConnectionAfterException(borrowed.get(i), failures.get(i));
+				}
+				else {
+					dataSource.releaseConnection(borrowed.get(i));
+				}
+			}
+		}
+		List<LdapModifyResult> toReturn = new ArrayList<LdapModifyResult>();
+		int ok = 0;
+		int unknown = 0;
+		for (int i = 0; i < results.length(); i++) {
+			LdapModifyResult result = results.get(i);
+			if(result==null) {
+				result = new LdapModifyResult(dns.get(i), null, "Not executed");
+			}
+			else {
+				invalidateCache(dns.get(i));
+			}
+			if(result.isSuccess()) {
+				ok++;
+			}
+			else if(result.isOutcomeUnknown()) {
+				unknown++;
+			}
+			toReturn.add(result);
+		}
+		log.info("[ToolLDAP] Bulk modification ended: "+ok+" of "+results.length()+" entries modified, "+unknown+" with unknown outcome");
+		return toReturn;
+	}
+	
+	/**
+	 * Waits for the permits at most the response timeout of the connection, counted from start
+	 * @return false if the permits are not available in time
+	 */
+	private static boolean acquire(Semaphore semaphore, int permits, LDAPConnection connection, long start) throws InterruptedException {
+		long timeoutMillis = connection.getConnectionOptions().getResponseTimeoutMillis();
+		if(timeoutMillis<=0) {
+			semaphore.acquire(permits);
+			return true;
+		}
+		return semaphore.tryAcquire(permits, Math.max(0, start+timeoutMillis-System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Abandons the requests of the connection still without a result and marks their entries with unknown outcome
+	 * @return the error to release the connection with. null if there was nothing to abandon
+	 */
+	private LDAPException abandonOutstanding(int c, LDAPConnection connection, List<String> dns, AtomicReferenceArray<LdapModifyResult> results, AsyncRequestID[] requests, int[] connectionOf) {
+		int abandoned = 0;
+		for (int i = 0; i < requests.length; i++) {
+			if(requests[i]==null || connectionOf[i]!=c || results.get(i)!=null) {
+				continue;
+			}
+			try {
+				connection.abandon(requests[i]);
+			} catch (LDAPException e) {
+				log.error("[ToolLDAP] *** EXCEPTION ***",e);
+			}
+			if(results.compareAndSet(i, null, new LdapModifyResult(dns.get(i), ResultCode.TIMEOUT, "No result from the server, request abandoned", true))) {
+				abandoned++;
+			}
+		}
+		if(abandoned==0) {
+			return null;
+		}
+		log.error("[ToolLDAP] "+abandoned+" modifications abandoned without a result on connection "+c);
+		return new LDAPException(ResultCode.TIMEOUT, abandoned+" modifications abandoned without a result");
+	}
+	
+	private List<Modification> buildReplaceModifications(Map<String, String[]> modifications) {
+		List<Modification> modifiche = new ArrayList<Modification>();
+		if(modifications==null) {
+			return modifiche;
+		}
+		for(String attribute : modifications.keySet()) {
+			if(modifications.get(attribute)!=null && modifications.get(attribute).length>0) {
+				ASN1OctetString[] temp = new ASN1OctetString[modifications.get(attribute).length];
+				for (int i = 0; i < modifications.get(attribute).length; i++) {
+					temp[i] = new ASN1OctetString(modifications.get(attribute)[i]);
+				}
+				Modification modifica = new Modification(ModificationType.REPLACE, attribute, temp);
+				modifiche.add(modifica);
+			}
+		}
+		return modifiche;
+	}
+	
+	private void invalidateCache(String entryDN) {
+		LdapSearchCache cache = searchCache;
+		if(cache!=null) {
+			cache.invalidate(entryDN);
+		}
+	}
+	
+	/**
+	 * Stores the result of an asynchronous modification and frees its slot on the connection
+	 */
+	private static class BulkModifyListener implements AsyncResultListener {
+		private final AtomicReferenceArray<LdapModifyResult> results;
+		private final int index;
+		private final String dn;
+		private final Semaphore permits;
+		private final AtomicBoolean stop;
+		private final boolean stopOnError;
+		
+		private BulkModifyListener(AtomicReferenceArray<LdapModifyResult> results, int index, String dn, Semaphore permits, AtomicBoolean stop, boolean stopOnError) {
+			this.results = results;
+			this.index = index;
+			this.dn = dn;
+			this.permits = permits;
+			this.stop = stop;
+			this.stopOnError = stopOnError;
+		}
+
+		@Override
+		public void ldapResultReceived(AsyncRequestID requestID, LDAPResult ldapResult) {
+			// TIMEOUT is given by the client when the response timeout expires, the server may still apply the modification
+			boolean outcomeUnknown = ResultCode.TIMEOUT.equals(ldapResult.getResultCode());
+			// no result is stored if the request was already abandoned
+			if(results.compareAndSet(index, null, new LdapModifyResult(dn, ldapResult.getResultCode(), ldapResult.getDiagnosticMessage(), outcomeUnknown))
+					&& !ResultCode.SUCCESS.equals(ldapResult.getResultCode())) {
+				log.error("[ToolLDAP] Modification of "+dn+" failed: "+ldapResult.getResultCode());
+				if(stopOnError) {
+					stop.set(true);
+				}
+			}
+			permits.release();
+		}
+	}
+	
+	/**
+	 * Passes the entries of a paged search to the handler without buffering them
+	 */
+	private static class EntryListener implements SearchResultListener {
+		private static final long serialVersionUID = 1L;
+		private final transient LdapEntryHandler handler;
+		private long count = 0;
+		private boolean stopped = false;
+		private RuntimeException error = null;
+		
+		private EntryListener(LdapEntryHandler handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		public void searchEntryReturned(SearchResultEntry entry) {
+			if(stopped) {
+				// the rest of the current page is discarded
+				return;
+			}
+			Map<String, String[]> attributes = new HashMap<String, String[]>();
+			for(Attribute a : entry.getAttributes()) {
+				attributes.put(a.getName(), a.getValues());
+			}
+			try {
+				count++;
+				if(!handler.handleEntry(entry.getDN(), attributes)) {
+					stopped = true;
+				}
+			} catch (RuntimeException e) {
+				error = e;
+				stopped = true;
+			}
+		}
+
+		@Override
+		public void searchReferenceReturned(SearchResultReference reference) {
+			log.debug("[ToolLDAP] Ignored referral "+reference.toString());
+		}
+	}
 
 }
@@ -0,0 +1,52 @@
+package ssh;
+
+/**
+ * Host and credentials of an SSH connection
+ * @author enrico guariento
+ *
+ */
+public class SshHost {
+
+	private final String hostname;
+	private final int port;
+	private final String username;
+	private final String password;
+
+	/**
+	 * @param hostname name or address of the host
+	 * @param port ssh port, usually 22
+	 * @param username user
+	 * @param password password of the user
+	 */
+	public SshHost(String hostname, int port, String username, String password) {
+		this.hostname = hostname.trim();
+		this.port = port;
+		this.username = username;
+		this.password = password;
+	}
+
+	public String getHostname() {
+		return hostname;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	/**
+	 * @return username@hostname:port, used as key of the pool
+	 */
+	@Override
+	public String toString() {
+		return username+"@"+hostname+":"+port;
+	}
+
+}
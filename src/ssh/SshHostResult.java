@@ -0,0 +1,87 @@
+package ssh;
+
+import java.util.Map;
+
+/**
+ * Result of a command on one of the hosts of ToolSSH.executeCommandOnHosts
+ * @author enrico guariento
+ *
+ */
+public class SshHostResult {
+
+	private final SshHost host;
+	private final Map<String,String> result;
+	private final long startMillis;
+	private final long durationMillis;
+
+	public SshHostResult(SshHost host, Map<String,String> result, long startMillis, long durationMillis) {
+		this.host = host;
+		this.result = result;
+		this.startMillis = startMillis;
+		this.durationMillis = durationMillis;
+	}
+
+	public SshHost getHost() {
+		return host;
+	}
+
+	/**
+	 * @return Map with the same keys of ToolSSH.executeCommand
+	 */
+	public Map<String,String> getResult() {
+		return result;
+	}
+
+	public String getStdOut() {
+		return result.get(ToolSSH.STD_OUT);
+	}
+
+	public String getStdErr() {
+		return result.get(ToolSSH.STD_ERR);
+	}
+
+	/**
+	 * @return exit code of the command, -1 if it did not end or the server did not send it
+	 */
+	public int getExitCode() {
+		try {
+			return Integer.parseInt(result.get(ToolSSH.EXIT_CODE));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return error message, "0" if the command has been executed
+	 */
+	public String getMessage() {
+		return result.get(ToolSSH.MESSAGGIO_STATUS);
+	}
+
+	/**
+	 * @return true if the command has been executed and its exit code is 0
+	 */
+	public boolean isSuccess() {
+		return "OK".equals(result.get(ToolSSH.STATUS)) && getExitCode()==0;
+	}
+
+	/**
+	 * @return time the command has been started on the host, in milliseconds since the epoch
+	 */
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	/**
+	 * @return duration of the connection (if needed) and of the command, in milliseconds
+	 */
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "SshHostResult(host="+host+", status="+result.get(ToolSSH.STATUS)+", exitCode="+getExitCode()+", durationMillis="+durationMillis+")";
+	}
+
+}
@@ -0,0 +1,16 @@
+package ssh;
+
+/**
+ * Callback of SshOutputSink.forLines. It receives the output of a command line by line, while the command runs
+ * @author enrico guariento
+ *
+ */
+public interface SshLineHandler {
+
+	/**
+	 * @param line line of output without the line terminator. A line longer than SshOutputSink.MAX_LINE_LENGTH
+	 * is passed in more pieces
+	 */
+	void handleLine(String line);
+
+}
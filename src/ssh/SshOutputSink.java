@@ -0,0 +1,222 @@
+package ssh;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Destination of the standard out or of the standard error of a command of ToolSSH.
+ * It receives the bytes while they arrive, from the buffer of the reading thread, so the memory used
+ * does not depend on the size of the output. Use a different sink for every stream
+ * @author enrico guariento
+ *
+ */
+public abstract class SshOutputSink {
+
+	/**
+	 * Maximum number of characters of a line passed to a SshLineHandler
+	 */
+	public static final int MAX_LINE_LENGTH = 65536;
+	private static final int DECODE_BUFFER_SIZE = 4096;
+
+	/**
+	 * Receives a piece of the output. The buffer is reused after the call, copy the bytes to keep them
+	 * @param buffer buffer with the bytes
+	 * @param offset position of the first byte
+	 * @param length number of bytes
+	 * @throws IOException stops the command
+	 */
+	public abstract void write(byte[] buffer, int offset, int length) throws IOException;
+
+	/**
+	 * Called once at the end of the output. It does not close the destination.
+	 * It may not be called if the command ends with a timeout or an error: the output is then incomplete
+	 * @throws IOException if the last bytes can't be written
+	 */
+	public void finish() throws IOException {
+	}
+
+	/**
+	 * @param out stream receiving the bytes. It is flushed at the end but not closed
+	 * @return sink writing on the stream
+	 */
+	public static SshOutputSink forStream(final OutputStream out) {
+		return new SshOutputSink() {
+			@Override
+			public void write(byte[] buffer, int offset, int length) throws IOException {
+				out.write(buffer, offset, length);
+			}
+			@Override
+			public void finish() throws IOException {
+				out.flush();
+			}
+		};
+	}
+
+	/**
+	 * @param channel channel receiving the bytes, ie: a FileChannel. It is not closed
+	 * @return sink writing on the channel
+	 */
+	public static SshOutputSink forChannel(final WritableByteChannel channel) {
+		return new SshOutputSink() {
+			@Override
+			public void write(byte[] buffer, int offset, int length) throws IOException {
+				ByteBuffer bytes = ByteBuffer.wrap(buffer, offset, length);
+				while(bytes.hasRemaining()) {
+					channel.write(bytes);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @param handler receives the lines, "\n" and "\r\n" are both line terminators
+	 * @param charset encoding of the output, ie: UTF-8
+	 * @return sink decoding the output and splitting it in lines
+	 */
+	public static SshOutputSink forLines(final SshLineHandler handler, Charset charset) {
+		return new DecodingSink(charset) {
+			private final StringBuilder line = new StringBuilder();
+			@Override
+			void append(CharBuffer chars) {
+				while(chars.hasRemaining()) {
+					char c = chars.get();
+					if(c=='\n') {
+						int length = line.length();
+						if(length>0 && line.charAt(length-1)=='\r') {
+							line.setLength(length-1);
+						}
+						endLine();
+					}
+					else {
+						line.append(c);
+						if(line.length()>=MAX_LINE_LENGTH) {
+							endLine();
+						}
+					}
+				}
+			}
+			@Override
+			void end() {
+				if(line.length()>0) {
+					endLine();
+				}
+			}
+			private void endLine() {
+				handler.handleLine(line.toString());
+				line.setLength(0);
+			}
+		};
+	}
+
+	/**
+	 * @return sink ignoring the output
+	 */
+	public static SshOutputSink discard() {
+		return new SshOutputSink() {
+			@Override
+			public void write(byte[] buffer, int offset, int length) {
+			}
+		};
+	}
+
+	/**
+	 * Sink keeping all the output as text, used by the methods of ToolSSH returning a Map
+	 */
+	static TextSink forText(Charset charset) {
+		return new TextSink(charset);
+	}
+
+	static class TextSink extends DecodingSink {
+		private final StringBuffer text = new StringBuffer();
+
+		private TextSink(Charset charset) {
+			super(charset);
+		}
+
+		@Override
+		void append(CharBuffer chars) {
+			text.append(chars);
+		}
+
+		/**
+		 * @return the text received so far
+		 */
+		String getText() {
+			return text.toString();
+		}
+	}
+
+	/**
+	 * Decodes the bytes keeping the incomplete characters for the next write
+	 */
+	abstract static class DecodingSink extends SshOutputSink {
+		private final CharsetDecoder decoder;
+		private final ByteBuffer bytes = ByteBuffer.allocate(DECODE_BUFFER_SIZE);
+		private final CharBuffer chars = CharBuffer.allocate(DECODE_BUFFER_SIZE);
+
+		DecodingSink(Charset charset) {
+			decoder = charset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+
+		/**
+		 * @param chars decoded characters, to read completely
+		 */
+		abstract void append(CharBuffer chars);
+
+		/**
+		 * End of the output
+		 */
+		void end() {
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) {
+			while(length>0) {
+				int n = Math.min(length, bytes.remaining());
+				bytes.put(buffer, offset, n);
+				offset += n;
+				length -= n;
+				bytes.flip();
+				decode(false);
+				bytes.compact();
+			}
+		}
+
+		@Override
+		public void finish() {
+			bytes.flip();
+			decode(true);
+			while(decoder.flush(chars).isOverflow()) {
+				drain();
+			}
+			drain();
+			bytes.clear();
+			decoder.reset();
+			end();
+		}
+
+		private void decode(boolean endOfInput) {
+			CoderResult result;
+			do {
+				result = decoder.decode(bytes, chars, endOfInput);
+				drain();
+			} while(result.isOverflow());
+		}
+
+		private void drain() {
+			chars.flip();
+			append(chars);
+			chars.clear();
+		}
+	}
+
+}
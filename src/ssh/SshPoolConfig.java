@@ -0,0 +1,121 @@
+package ssh;
+
+/**
+ * Configuration of the pool of SSH sessions used by ToolSSH
+ * All the times are in milliseconds. If not set, the default values are used
+ * @author enrico guariento
+ *
+ */
+public class SshPoolConfig {
+
+	private int maxSessionsPerHost = 4;
+	private int maxChannelsPerSession = 10;
+	private long borrowTimeoutMillis = 30000L;
+	private int connectTimeoutMillis = 10000;
+	private long idleTimeoutMillis = 300000L;
+	private int keepAliveIntervalMillis = 30000;
+	private int keepAliveCountMax = 3;
+	private long commandTimeoutMillis = 0L;
+	private String charset = "UTF-8";
+
+	/**
+	 * @return maximum number of sessions opened at the same time to the same host, port and user
+	 */
+	public int getMaxSessionsPerHost() {
+		return maxSessionsPerHost;
+	}
+
+	public void setMaxSessionsPerHost(int maxSessionsPerHost) {
+		this.maxSessionsPerHost = maxSessionsPerHost;
+	}
+
+	/**
+	 * @return maximum number of channels opened at the same time on one session by ToolSSH.submitCommands.
+	 * It must not exceed the MaxSessions of the server, 10 by default in OpenSSH
+	 */
+	public int getMaxChannelsPerSession() {
+		return maxChannelsPerSession;
+	}
+
+	public void setMaxChannelsPerSession(int maxChannelsPerSession) {
+		this.maxChannelsPerSession = maxChannelsPerSession;
+	}
+
+	/**
+	 * @return time to wait for a free session before failing
+	 */
+	public long getBorrowTimeoutMillis() {
+		return borrowTimeoutMillis;
+	}
+
+	public void setBorrowTimeoutMillis(long borrowTimeoutMillis) {
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+	}
+
+	/**
+	 * @return timeout of the connection and of the key exchange of a new session
+	 */
+	public int getConnectTimeoutMillis() {
+		return connectTimeoutMillis;
+	}
+
+	public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	/**
+	 * @return time after which an unused session is closed. 0 keeps them open until disconnect
+	 */
+	public long getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	 * @return interval of the keepalive messages sent on a silent session. 0 disables them
+	 */
+	public int getKeepAliveIntervalMillis() {
+		return keepAliveIntervalMillis;
+	}
+
+	public void setKeepAliveIntervalMillis(int keepAliveIntervalMillis) {
+		this.keepAliveIntervalMillis = keepAliveIntervalMillis;
+	}
+
+	/**
+	 * @return number of keepalive messages without answer after which the session is considered dead
+	 */
+	public int getKeepAliveCountMax() {
+		return keepAliveCountMax;
+	}
+
+	public void setKeepAliveCountMax(int keepAliveCountMax) {
+		this.keepAliveCountMax = keepAliveCountMax;
+	}
+
+	/**
+	 * @return maximum duration of a command of executeCommand and executeSudoCommand. 0 means no limit
+	 */
+	public long getCommandTimeoutMillis() {
+		return commandTimeoutMillis;
+	}
+
+	public void setCommandTimeoutMillis(long commandTimeoutMillis) {
+		this.commandTimeoutMillis = commandTimeoutMillis;
+	}
+
+	/**
+	 * @return encoding of the output of the commands and of the sudo password, ie: UTF-8
+	 */
+	public String getCharset() {
+		return charset;
+	}
+
+	public void setCharset(String charset) {
+		this.charset = charset;
+	}
+
+}
@@ -0,0 +1,300 @@
+package ssh;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * Pool of authenticated JSch sessions, one sub-pool for every (host, port, user).
+ * A borrowed session belongs to the caller until it is released. The idle sessions are kept alive
+ * with keepalive messages and closed after the idle timeout. A dead session is replaced with a new one
+ * @author enrico guariento
+ *
+ */
+public class SshSessionPool {
+
+	private final JSch jsch = new JSch();
+	private final SshPoolConfig config;
+	private final Logger log;
+	private final Map<String, HostPool> hosts = new ConcurrentHashMap<String, HostPool>();
+	private final Map<Session, PooledSession> borrowed = new ConcurrentHashMap<Session, PooledSession>();
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong borrowTimeouts = new AtomicLong();
+	private final AtomicLong sessionsCreated = new AtomicLong();
+	private final AtomicLong sessionsDiscarded = new AtomicLong();
+	private final Timer evictionTimer;
+	private volatile long generation = 0;
+
+	/**
+	 * @param config configuration of the pool. If null, the default values are used
+	 * @param log logger. If null the logger of this class is used
+	 */
+	public SshSessionPool(SshPoolConfig config, Logger log) {
+		this.config = config!=null ? config : new SshPoolConfig();
+		this.log = log!=null ? log : Logger.getLogger(SshSessionPool.class);
+		long idleTimeout = this.config.getIdleTimeoutMillis();
+		if(idleTimeout>0) {
+			evictionTimer = new Timer("SshSessionPool-eviction", true);
+			evictionTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					evictIdle();
+				}
+			}, idleTimeout, Math.max(1000L, idleTimeout/2));
+		}
+		else {
+			evictionTimer = null;
+		}
+	}
+
+	/**
+	 * Takes a connected session to the host, opening a new one if none is idle.
+	 * Waits up to the borrow timeout if the host already has the maximum number of sessions
+	 * @param host host and credentials
+	 * @return session to give back with releaseSession
+	 * @throws JSchException if the connection or the authentication fail, or no session is available in time
+	 */
+	public Session borrowSession(SshHost host) throws JSchException {
+		return borrowSession(host, config.getConnectTimeoutMillis());
+	}
+
+	/**
+	 * Takes a connected session to the host, opening a new one if none is idle.
+	 * Waits up to the borrow timeout if the host already has the maximum number of sessions
+	 * @param host host and credentials
+	 * @param connectTimeoutMillis timeout of the connection if a new session is opened
+	 * @return session to give back with releaseSession
+	 * @throws JSchException if the connection or the authentication fail, or no session is available in time
+	 */
+	public Session borrowSession(SshHost host, int connectTimeoutMillis) throws JSchException {
+		HostPool pool = getHostPool(host);
+		try {
+			if(!pool.permits.tryAcquire(config.getBorrowTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+				borrowTimeouts.incrementAndGet();
+				throw new JSchException("Timeout waiting for a session to "+host);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JSchException("Interrupted waiting for a session to "+host);
+		}
+		try {
+			PooledSession pooled;
+			while((pooled = pool.idle.pollFirst())!=null) {
+				if(pooled.session.isConnected() && pooled.generation==generation && Objects.equals(host.getPassword(), pooled.password)) {
+					break;
+				}
+				// closed by the server or by disconnect, or opened with other credentials that this borrow can't prove: replace it
+				discard(pooled);
+			}
+			if(pooled==null) {
+				pooled = new PooledSession(pool, connect(host, connectTimeoutMillis), generation, host.getPassword());
+			}
+			borrowed.put(pooled.session, pooled);
+			borrows.incrementAndGet();
+			return pooled.session;
+		} catch (JSchException e) {
+			pool.permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			pool.permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives back a borrowed session. A disconnected session is discarded
+	 * @param session borrowed session, can be null
+	 */
+	public void releaseSession(Session session) {
+		if(session==null) {
+			return;
+		}
+		PooledSession pooled = borrowed.remove(session);
+		if(pooled==null) {
+			log.warn("[SshSessionPool] Released a session not borrowed from the pool");
+			return;
+		}
+		if(session.isConnected() && pooled.generation==generation) {
+			pooled.lastUsed = System.currentTimeMillis();
+			pooled.pool.idle.offerFirst(pooled);
+		}
+		else {
+			discard(pooled);
+		}
+		pooled.pool.permits.release();
+	}
+
+	/**
+	 * Gives back a borrowed session that failed: it is disconnected and the next borrow opens a new one
+	 * @param session borrowed session, can be null
+	 */
+	public void invalidateSession(Session session) {
+		if(session==null) {
+			return;
+		}
+		PooledSession pooled = borrowed.remove(session);
+		if(pooled==null) {
+			session.disconnect();
+			return;
+		}
+		discard(pooled);
+		pooled.pool.permits.release();
+	}
+
+	/**
+	 * Disconnects the idle sessions. The borrowed ones are disconnected when released.
+	 * The pool can still be used, new sessions are opened on demand
+	 */
+	public synchronized void close() {
+		generation++;
+		for(HostPool pool : hosts.values()) {
+			PooledSession pooled;
+			while((pooled = pool.idle.pollFirst())!=null) {
+				discard(pooled);
+			}
+		}
+		log.info("[SshSessionPool] Closed idle sessions "+this);
+	}
+
+	public SshPoolConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * @return number of sessions in use
+	 */
+	public int getActiveSessions() {
+		return borrowed.size();
+	}
+
+	/**
+	 * @return number of sessions waiting in the pool
+	 */
+	public int getIdleSessions() {
+		int toReturn = 0;
+		for(HostPool pool : hosts.values()) {
+			toReturn += pool.idle.size();
+		}
+		return toReturn;
+	}
+
+	public long getBorrows() {
+		return borrows.get();
+	}
+
+	public long getBorrowTimeouts() {
+		return borrowTimeouts.get();
+	}
+
+	public long getSessionsCreated() {
+		return sessionsCreated.get();
+	}
+
+	/**
+	 * @return number of sessions closed because dead, idle for too long or invalidated
+	 */
+	public long getSessionsDiscarded() {
+		return sessionsDiscarded.get();
+	}
+
+	@Override
+	public String toString() {
+		return "SshSessionPool(hosts="+hosts.size()+", active="+getActiveSessions()+", idle="+getIdleSessions()+", borrows="+getBorrows()
+				+", timeouts="+getBorrowTimeouts()+", created="+getSessionsCreated()+", discarded="+getSessionsDiscarded()+")";
+	}
+
+	private HostPool getHostPool(SshHost host) {
+		String key = host.toString();
+		HostPool toReturn = hosts.get(key);
+		if(toReturn==null) {
+			synchronized (hosts) {
+				toReturn = hosts.get(key);
+				if(toReturn==null) {
+					toReturn = new HostPool(Math.max(1, config.getMaxSessionsPerHost()));
+					hosts.put(key, toReturn);
+				}
+			}
+		}
+		return toReturn;
+	}
+
+	private Session connect(SshHost host, int connectTimeoutMillis) throws JSchException {
+		log.debug("[SshSessionPool] Trying to connect: "+host);
+		Session session = jsch.getSession(host.getUsername(), host.getHostname(), host.getPort());
+		session.setConfig("StrictHostKeyChecking", "no");
+		session.setPassword(host.getPassword());
+		if(config.getKeepAliveIntervalMillis()>0) {
+			session.setServerAliveInterval(config.getKeepAliveIntervalMillis());
+			session.setServerAliveCountMax(config.getKeepAliveCountMax());
+		}
+		session.connect(connectTimeoutMillis);
+		sessionsCreated.incrementAndGet();
+		log.info("[SshSessionPool] Session opened: "+host);
+		return session;
+	}
+
+	private void discard(PooledSession pooled) {
+		sessionsDiscarded.incrementAndGet();
+		try {
+			pooled.session.disconnect();
+		} catch (RuntimeException e) {
+			log.error("[SshSessionPool] *** EXCEPTION ***",e);
+		}
+	}
+
+	private void evictIdle() {
+		long limit = System.currentTimeMillis()-config.getIdleTimeoutMillis();
+		for(HostPool pool : hosts.values()) {
+			Iterator<PooledSession> it = pool.idle.iterator();
+			while(it.hasNext()) {
+				PooledSession pooled = it.next();
+				if((pooled.lastUsed<limit || !pooled.session.isConnected()) && pool.idle.remove(pooled)) {
+					log.debug("[SshSessionPool] Closing idle session to "+pooled.session.getHost());
+					discard(pooled);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sessions of a single host, port and user
+	 */
+	private static class HostPool {
+		private final Semaphore permits;
+		private final LinkedBlockingDeque<PooledSession> idle = new LinkedBlockingDeque<PooledSession>();
+
+		private HostPool(int maxSessions) {
+			this.permits = new Semaphore(maxSessions, true);
+		}
+	}
+
+	private static class PooledSession {
+		private final HostPool pool;
+		private final Session session;
+		private final long generation;
+		// password the session authenticated with
+		private final String password;
+		private volatile long lastUsed = System.currentTimeMillis();
+
+		private PooledSession(HostPool pool, Session session, long generation, String password) {
+			this.pool = pool;
+			this.session = session;
+			this.generation = generation;
+			this.password = password;
+		}
+	}
+
+}
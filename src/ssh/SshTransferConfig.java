@@ -0,0 +1,62 @@
+package ssh;
+
+/**
+ * Options of the SFTP transfers of ToolSSH.upload and ToolSSH.download. If not set, the default values are used
+ * @author enrico guariento
+ *
+ */
+public class SshTransferConfig {
+
+	private int chunkSize = 65536;
+	private int bulkRequests = 16;
+	private boolean resume = false;
+	private boolean verifyChecksum = false;
+
+	/**
+	 * @return size of the buffer read from the file or from the server and written at once
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * @return number of read requests sent to the server without waiting for the answers, during a download.
+	 * The uploads always send the writes without waiting for the answers
+	 */
+	public int getBulkRequests() {
+		return bulkRequests;
+	}
+
+	public void setBulkRequests(int bulkRequests) {
+		this.bulkRequests = bulkRequests;
+	}
+
+	/**
+	 * @return true to continue a previous transfer: the bytes already present in the destination are not sent again.
+	 * If the destination is bigger than the source, it is written again from the beginning
+	 */
+	public boolean isResume() {
+		return resume;
+	}
+
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+
+	/**
+	 * @return true to compare the SHA-256 of the local file with the one of the remote file (computed with sha256sum)
+	 * at the end of the transfer
+	 */
+	public boolean isVerifyChecksum() {
+		return verifyChecksum;
+	}
+
+	public void setVerifyChecksum(boolean verifyChecksum) {
+		this.verifyChecksum = verifyChecksum;
+	}
+
+}
@@ -0,0 +1,116 @@
+package ssh;
+
+/**
+ * Result of a file transfer of ToolSSH.upload or ToolSSH.download
+ * @author enrico guariento
+ *
+ */
+public class SshTransferResult {
+
+	private final String source;
+	private final String destination;
+	private long size = -1;
+	private long offset = 0;
+	private long bytesTransferred = 0;
+	private long durationMillis = 0;
+	private String checksum;
+	private Exception error;
+
+	public SshTransferResult(String source, String destination) {
+		this.source = source;
+		this.destination = destination;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public String getDestination() {
+		return destination;
+	}
+
+	/**
+	 * @return size of the source file, -1 if unknown
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	void setSize(long size) {
+		this.size = size;
+	}
+
+	/**
+	 * @return position the transfer started from, greater than 0 if a previous transfer has been resumed
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+	/**
+	 * @return number of bytes sent or received by this transfer
+	 */
+	public long getBytesTransferred() {
+		return bytesTransferred;
+	}
+
+	void addBytesTransferred(long bytes) {
+		this.bytesTransferred += bytes;
+	}
+
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	void setDurationMillis(long durationMillis) {
+		this.durationMillis = durationMillis;
+	}
+
+	/**
+	 * @return throughput of the transfer in bytes per second
+	 */
+	public long getBytesPerSecond() {
+		return durationMillis>0 ? bytesTransferred*1000L/durationMillis : bytesTransferred;
+	}
+
+	/**
+	 * @return SHA-256 in hexadecimal of the file, verified on both sides. null if the verification was not requested
+	 */
+	public String getChecksum() {
+		return checksum;
+	}
+
+	void setChecksum(String checksum) {
+		this.checksum = checksum;
+	}
+
+	/**
+	 * @return error of the transfer, null if success
+	 */
+	public Exception getError() {
+		return error;
+	}
+
+	void setError(Exception error) {
+		this.error = error;
+	}
+
+	/**
+	 * @return true if the whole file has been transferred (and verified, if requested)
+	 */
+	public boolean isSuccess() {
+		return error==null;
+	}
+
+	@Override
+	public String toString() {
+		return "SshTransferResult(source="+source+", destination="+destination+", size="+size+", offset="+offset
+				+", bytes="+bytesTransferred+", durationMillis="+durationMillis+", bytesPerSecond="+getBytesPerSecond()
+				+(checksum!=null ? ", checksum="+checksum : "")+(error!=null ? ", error="+error : "")+")";
+	}
+
+}
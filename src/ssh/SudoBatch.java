@@ -0,0 +1,278 @@
+package ssh;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Protocol of ToolSSH.executeSudoCommands: one shell started with sudo receives all the commands on its standard input.
+ * Every marker is a line made of a random string, ":" and a token, so the commands can't print it by chance:
+ * the sudo prompt (token pw), the start of the shell (token ready) and the end of every command
+ * (token "index exitCode" on standard out, "index" on standard error). The output between two markers
+ * belongs to the command of the second one
+ * @author enrico guariento
+ *
+ */
+class SudoBatch {
+
+	/**
+	 * State of the shell before the commands are sent
+	 */
+	enum Start {
+		/** sudo asks for the password */
+		PASSWORD,
+		/** the shell is running as root */
+		READY,
+		/** sudo refused the password or ended */
+		FAILED,
+		/** no answer before the deadline */
+		TIMEOUT
+	}
+
+	private static final String PROMPT = "pw";
+	private static final String READY = "ready";
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final List<String> commands;
+	private final Charset charset;
+	private final String marker;
+	private final Object lock = new Object();
+	private final MarkerSink outSink;
+	private final MarkerSink errSink;
+
+	SudoBatch(List<String> commands, Charset charset) {
+		this.commands = commands;
+		this.charset = charset;
+		this.marker = "TOOLSSH"+Long.toHexString(RANDOM.nextLong())+Long.toHexString(RANDOM.nextLong());
+		this.outSink = new MarkerSink();
+		this.errSink = new MarkerSink();
+	}
+
+	/**
+	 * @return command of the exec channel. sudo prints the prompt as a marker, the shell prints the ready marker
+	 */
+	String getShellCommand() {
+		return "sudo -S -p '"+marker+":"+PROMPT+"\n' sh -c 'echo; echo "+marker+":"+READY+"; exec sh'";
+	}
+
+	SshOutputSink getOutSink() {
+		return outSink;
+	}
+
+	SshOutputSink getErrSink() {
+		return errSink;
+	}
+
+	/**
+	 * Waits for the prompt of sudo or, if no password is needed, for the shell
+	 */
+	Start awaitStart(long deadline) throws InterruptedException {
+		return await(0, deadline);
+	}
+
+	/**
+	 * Waits for the shell after the password has been sent. A second prompt means a wrong password
+	 */
+	Start awaitReady(long deadline) throws InterruptedException {
+		Start toReturn = await(1, deadline);
+		return toReturn==Start.PASSWORD ? Start.FAILED : toReturn;
+	}
+
+	private Start await(int promptsSeen, long deadline) throws InterruptedException {
+		synchronized(lock) {
+			while(true) {
+				if(outSink.tokens.contains(READY)) {
+					return Start.READY;
+				}
+				if(count(errSink.tokens, PROMPT)>promptsSeen) {
+					return Start.PASSWORD;
+				}
+				if(outSink.ended || errSink.ended) {
+					return Start.FAILED;
+				}
+				long wait = deadline-System.currentTimeMillis();
+				if(wait<=0) {
+					return Start.TIMEOUT;
+				}
+				lock.wait(wait);
+			}
+		}
+	}
+
+	/**
+	 * Sends the password followed by a new line. The password and its encoded copies are overwritten with zeros
+	 */
+	void sendPassword(OutputStream out, char[] password) throws IOException {
+		ByteBuffer encoded = charset.encode(CharBuffer.wrap(password));
+		byte[] line = new byte[encoded.remaining()+1];
+		try {
+			encoded.get(line, 0, line.length-1);
+			line[line.length-1] = '\n';
+			out.write(line);
+			out.flush();
+		}
+		finally {
+			Arrays.fill(line, (byte) 0);
+			if(encoded.hasArray()) {
+				Arrays.fill(encoded.array(), (byte) 0);
+			}
+			Arrays.fill(password, '\0');
+		}
+	}
+
+	/**
+	 * @return all the commands with their markers, then exit. Every command reads its input from /dev/null,
+	 * so it can't consume the following ones
+	 */
+	byte[] getScript() {
+		StringBuilder script = new StringBuilder();
+		for (int i = 0; i < commands.size(); i++) {
+			script.append("{ ").append(commands.get(i)).append("\n} </dev/null\n");
+			script.append("__rc=$?; printf '\\n%s\\n' \"").append(marker).append(':').append(i).append(" $__rc\"; ");
+			script.append("printf '\\n%s\\n' ").append(marker).append(':').append(i).append(" >&2\n");
+		}
+		script.append("exit\n");
+		return script.toString().getBytes(charset);
+	}
+
+	/**
+	 * @param completed true if the shell ended, false after a timeout or an error
+	 * @param shellExitStatus exit status of the shell, it is the one of a command ending it with exit
+	 * @param failure message of the first command without result if not completed
+	 * @return a Map for every command with the keys of ToolSSH.executeCommand
+	 */
+	List<Map<String,String>> getResults(boolean completed, int shellExitStatus, String failure) {
+		int size = commands.size();
+		String[] out = new String[size];
+		String[] err = new String[size];
+		String[] exitCodes = new String[size];
+		synchronized(lock) {
+			for (int i = 0; i < outSink.tokens.size(); i++) {
+				String[] token = outSink.tokens.get(i).split(" ");
+				if(token.length==2) {
+					int index = Integer.parseInt(token[0]);
+					out[index] = outSink.segments.get(i);
+					exitCodes[index] = token[1];
+				}
+			}
+			for (int i = 0; i < errSink.tokens.size(); i++) {
+				String token = errSink.tokens.get(i);
+				if(!PROMPT.equals(token)) {
+					err[Integer.parseInt(token)] = errSink.segments.get(i);
+				}
+			}
+		}
+		List<Map<String,String>> toReturn = new ArrayList<Map<String,String>>();
+		boolean first = true;
+		for (int i = 0; i < size; i++) {
+			Map<String,String> result = new HashMap<String,String>();
+			result.put(ToolSSH.STD_OUT, out[i]!=null ? out[i] : "");
+			result.put(ToolSSH.STD_ERR, err[i]!=null ? err[i] : "");
+			result.put(ToolSSH.EXIT_CODE, exitCodes[i]!=null ? exitCodes[i] : "-1");
+			if(exitCodes[i]!=null) {
+				result.put(ToolSSH.STATUS, "OK");
+				result.put(ToolSSH.MESSAGGIO_STATUS, "0");
+			}
+			else if(first) {
+				// the command running when the shell ended or the batch stopped
+				first = false;
+				result.put(ToolSSH.STD_OUT, outSink.getPending());
+				result.put(ToolSSH.STD_ERR, errSink.getPending());
+				if(completed) {
+					result.put(ToolSSH.EXIT_CODE, String.valueOf(shellExitStatus));
+					result.put(ToolSSH.STATUS, "OK");
+					result.put(ToolSSH.MESSAGGIO_STATUS, "0");
+				}
+				else {
+					result.put(ToolSSH.STATUS, "KO");
+					result.put(ToolSSH.MESSAGGIO_STATUS, failure);
+				}
+			}
+			else {
+				result.put(ToolSSH.STATUS, "KO");
+				result.put(ToolSSH.MESSAGGIO_STATUS, "[ToolSSH] 8: Error: Command not executed");
+			}
+			toReturn.add(result);
+		}
+		return toReturn;
+	}
+
+	private static int count(List<String> tokens, String token) {
+		int toReturn = 0;
+		for(String t : tokens) {
+			if(t.equals(token)) {
+				toReturn++;
+			}
+		}
+		return toReturn;
+	}
+
+	/**
+	 * Splits a stream at the markers
+	 */
+	private class MarkerSink extends SshOutputSink.DecodingSink {
+		private final String prefix = marker+":";
+		private final StringBuilder text = new StringBuilder();
+		private int searchFrom = 0;
+		// guarded by lock
+		private final List<String> tokens = new ArrayList<String>();
+		private final List<String> segments = new ArrayList<String>();
+		private boolean ended = false;
+
+		private MarkerSink() {
+			super(charset);
+		}
+
+		@Override
+		void append(CharBuffer chars) {
+			synchronized(lock) {
+				text.append(chars);
+				while(true) {
+					int index = text.indexOf(prefix, searchFrom);
+					if(index<0) {
+						searchFrom = Math.max(0, text.length()-prefix.length()+1);
+						return;
+					}
+					int end = text.indexOf("\n", index+prefix.length());
+					if(end<0) {
+						searchFrom = index;
+						return;
+					}
+					// the new line before the marker is printed by the marker
+					int segmentEnd = index>0 && text.charAt(index-1)=='\n' ? index-1 : index;
+					segments.add(text.substring(0, segmentEnd));
+					tokens.add(text.substring(index+prefix.length(), end));
+					text.delete(0, end+1);
+					searchFrom = 0;
+					lock.notifyAll();
+				}
+			}
+		}
+
+		@Override
+		void end() {
+			synchronized(lock) {
+				ended = true;
+				lock.notifyAll();
+			}
+		}
+
+		/**
+		 * @return the text after the last marker
+		 */
+		private String getPending() {
+			synchronized(lock) {
+				return text.toString();
+			}
+		}
+	}
+
+}
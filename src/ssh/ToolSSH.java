@@ -3,20 +3,46 @@ package ssh;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
+import ssh.SshOutputSink.TextSink;
+
 import com.jcraft.jsch.Channel;
 import com.jcraft.jsch.ChannelExec;
-import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
 
 /**
  * Utility class for SSH (utilizes the library JSHC)
+ * The sessions are kept in a pool by host, port and user, so the methods with an SshHost
+ * can be called by many threads at the same time
  * You can pass a logger as parameter when initializing, otherwise system.out will be used
  * @author enrico guariento
  */
@@ -29,13 +55,27 @@ public class ToolSSH {
 	public static final String STD_ERR = "err";
 	public static final String STATUS = "status"; // OK, KO
 	public static final String MESSAGGIO_STATUS = "messaggio";
-	private Session session;
+	public static final String EXIT_CODE = "exitCode"; // -1 if the server did not send it
+	private static final int READ_BUFFER_SIZE = 8192;
+	private static final long EXIT_STATUS_WAIT_MILLIS = 1000L;
+	private static final long EXIT_STATUS_POLL_MILLIS = 5L;
+	private static final ThreadLocal<byte[]> READ_BUFFER = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[READ_BUFFER_SIZE];
+		}
+	};
+	private final SshSessionPool sessionPool;
+	private final ExecutorService readerExecutor;
+	private volatile SshHost defaultHost;
 	
-	private ToolSSH(Logger logger) {
+	private ToolSSH(SshPoolConfig poolConfig, Logger logger) {
 		if(logger!=null) {
 			log = logger;
 		}
-		log.info("[ToolSSH] ToolCryptography initialized");
+		sessionPool = new SshSessionPool(poolConfig, log);
+		readerExecutor = Executors.newCachedThreadPool(daemonThreads("ToolSSH-reader-"));
+		log.info("[ToolSSH] ToolSSH initialized");
 	}
 	
 	public static ToolSSH getInstance() {
@@ -43,14 +83,30 @@ public class ToolSSH {
 	}
 	
 	public static ToolSSH getInstance(Logger logger) {
+		return getInstance(null, logger);
+	}
+	
+	/**
+	 * @param poolConfig configuration of the pool of sessions, used only at the first call
+	 * @param logger logger
+	 */
+	public static ToolSSH getInstance(SshPoolConfig poolConfig, Logger logger) {
 		if(instance==null) {
-			instance = new ToolSSH(logger);
+			instance = new ToolSSH(poolConfig, logger);
 		}
 		return instance;
 	}
 	
 	/**
-	 * Makes the login with the specified credentials
+	 * @return the pool of the sessions, to read its statistics
+	 */
+	public SshSessionPool getSessionPool() {
+		return sessionPool;
+	}
+	
+	/**
+	 * Makes the login with the specified credentials. The host becomes the one used by
+	 * executeCommand and executeSudoCommand without host, the session stays in the pool
 	 * @param hostname
 	 * @param port
 	 * @param username
@@ -58,22 +114,13 @@ public class ToolSSH {
 	 * @return true if everything is ok, false otherwise
 	 */
 	public boolean login(String hostname, int port, String username, String password) {
-		// Create a session
-		JSch jsch = new JSch();
-		Properties prop = new Properties();
-		prop.put("StrictHostKeyChecking", "no");
-		
 		boolean toReturn = false;
 		try {
-			// If there is already a connection open, close it
-			disconnect();
-			// Open a new session
-			log.debug("[ToolSSH] Trying to connect: "+username+"@"+hostname.trim()+":"+port);
-			session = jsch.getSession(username, hostname.trim(), port);
-			session.setConfig(prop);
-		    session.setPassword(password);
-		    session.connect();
-		    toReturn = true;
+			SshHost host = new SshHost(hostname, port, username, password);
+			log.debug("[ToolSSH] Trying to connect: "+host);
+			sessionPool.releaseSession(sessionPool.borrowSession(host));
+			defaultHost = host;
+			toReturn = true;
 		} catch (Exception e) {
 			log.error("[ToolSSH] *** EXCEPTION ***",e);
 		}
@@ -81,143 +128,168 @@ public class ToolSSH {
 	}
 	
 	/**
-	 * Executes a not interactive command (or multiple commands separated by \n)
+	 * Executes a not interactive command (or multiple commands separated by \n) on the host of the last login
 	 * @param command command
 	 * @return Map with standard out, standard error and status messages
-	 * with keys ToolSSH.STD_OUT ToolSSH.STD_ERR ToolSSH.STATUS and ToolSSH.MESSAGGIO_STATUS
+	 * with keys ToolSSH.STD_OUT ToolSSH.STD_ERR ToolSSH.EXIT_CODE ToolSSH.STATUS and ToolSSH.MESSAGGIO_STATUS
 	 */
 	public Map<String,String> executeCommand(String command) {
+		SshHost host = defaultHost;
+		if(host==null) {
+			return notLoggedIn();
+		}
+		return executeCommand(host, command);
+	}
+	
+	/**
+	 * Executes a not interactive command (or multiple commands separated by \n) on a session of the pool
+	 * @param host host and credentials
+	 * @param command command
+	 * @return Map with standard out, standard error and status messages
+	 * with keys ToolSSH.STD_OUT ToolSSH.STD_ERR ToolSSH.EXIT_CODE ToolSSH.STATUS and ToolSSH.MESSAGGIO_STATUS
+	 */
+	public Map<String,String> executeCommand(SshHost host, String command) {
+		return executeCommand(host, command, sessionPool.getConfig().getCommandTimeoutMillis());
+	}
+	
+	/**
+	 * Executes a not interactive command (or multiple commands separated by \n) on a session of the pool
+	 * The method returns as soon as the command ends
+	 * @param host host and credentials
+	 * @param command command
+	 * @param timeoutMillis maximum duration of the command, then the channel is closed and the status is KO. 0 means no limit
+	 * @return Map with standard out, standard error and status messages
+	 * with keys ToolSSH.STD_OUT ToolSSH.STD_ERR ToolSSH.EXIT_CODE ToolSSH.STATUS and ToolSSH.MESSAGGIO_STATUS
+	 */
+	public Map<String,String> executeCommand(SshHost host, String command, long timeoutMillis) {
+		return executeCommand(host, command, sessionPool.getConfig().getConnectTimeoutMillis(), timeoutMillis);
+	}
+	
+	/**
+	 * Executes a not interactive command (or multiple commands separated by \n) on a session of the pool
+	 * The method returns as soon as the command ends
+	 * @param host host and credentials
+	 * @param command command
+	 * @param connectTimeoutMillis timeout of the connection, if the pool has no idle session to the host
+	 * @param timeoutMillis maximum duration of the command, then the channel is closed and the status is KO. 0 means no limit
+	 * @return Map with standard out, standard error and status messages
+	 * with keys ToolSSH.STD_OUT ToolSSH.STD_ERR ToolSSH.EXIT_CODE ToolSSH.STATUS and ToolSSH.MESSAGGIO_STATUS
+	 */
+	public Map<String,String> executeCommand(SshHost host, String command, int connectTimeoutMillis, long timeoutMillis) {
+		Charset charset = getCharset();
+		TextSink outText = SshOutputSink.forText(charset);
+		TextSink errText = SshOutputSink.forText(charset);
+		Map<String,String> toReturn = execute(host, command, connectTimeoutMillis, timeoutMillis, outText, errText);
+		// also the output read before an error
+		toReturn.put(STD_OUT, outText.getText());
+		toReturn.put(STD_ERR, errText.getText());
+		return toReturn;
+	}
+	
+	/**
+	 * Executes a not interactive command on the host of the last login, sending its output
+	 * to the sinks while it runs. Use it for long commands or large outputs
+	 * @param command command
+	 * @param outSink receives the standard out, ie: SshOutputSink.forLines(handler, charset). null to ignore it
+	 * @param errSink receives the standard error, must be another object than outSink. null to ignore it
+	 * @return Map with the status messages and the exit code, with keys ToolSSH.EXIT_CODE ToolSSH.STATUS
+	 * and ToolSSH.MESSAGGIO_STATUS. ToolSSH.STD_OUT and ToolSSH.STD_ERR are empty
+	 */
+	public Map<String,String> executeCommand(String command, SshOutputSink outSink, SshOutputSink errSink) {
+		SshHost host = defaultHost;
+		if(host==null) {
+			return notLoggedIn();
+		}
+		return executeCommand(host, command, outSink, errSink, sessionPool.getConfig().getCommandTimeoutMillis());
+	}
+	
+	/**
+	 * Executes a not interactive command on a session of the pool, sending its output
+	 * to the sinks while it runs. Use it for long commands or large outputs
+	 * @param host host and credentials
+	 * @param command command
+	 * @param outSink receives the standard out, ie: SshOutputSink.forStream(out). null to ignore it
+	 * @param errSink receives the standard error, must be another object than outSink. null to ignore it
+	 * @param timeoutMillis maximum duration of the command, then the channel is closed and the status is KO:
+	 * the sinks keep the output read so far and their finish() may not be called. 0 means no limit
+	 * @return Map with the status messages and the exit code, with keys ToolSSH.EXIT_CODE ToolSSH.STATUS
+	 * and ToolSSH.MESSAGGIO_STATUS. ToolSSH.STD_OUT and ToolSSH.STD_ERR are empty
+	 */
+	public Map<String,String> executeCommand(SshHost host, String command, SshOutputSink outSink, SshOutputSink errSink, long timeoutMillis) {
+		return execute(host, command, sessionPool.getConfig().getConnectTimeoutMillis(), timeoutMillis,
+				outSink!=null ? outSink : SshOutputSink.discard(), errSink!=null ? errSink : SshOutputSink.discard());
+	}
+	
+	private Map<String,String> execute(SshHost host, String command, int connectTimeoutMillis, long timeoutMillis, SshOutputSink outSink, SshOutputSink errSink) {
 		// initialize the map to return
-		Map<String,String> toReturn = new HashMap<String, String>();
-		toReturn.put(STD_ERR, "");
-		toReturn.put(STD_OUT, "");
-		toReturn.put(STATUS, "");
-		toReturn.put(MESSAGGIO_STATUS, "");
+		Map<String,String> toReturn = newResultMap();
 		
-		if(session.isConnected()) {
-			Channel channel = null;
-			try {
-				channel = session.openChannel("exec");
-				log.debug("[ToolSSH] Connection channel open");
-			} catch (Exception e) {
-				String messaggio = "[ToolSSH] 2: Error: Opening channel failed";
-				log.error(messaggio);
-				log.error("[ToolSSH] *** EXCEPTION ***",e);
-				toReturn.put(STATUS, "KO");
-				toReturn.put(MESSAGGIO_STATUS, messaggio);
-				return toReturn;
-			}
-			// Command to execute
-			((ChannelExec)channel).setCommand(command);
-			
-			// INPUT STREAM (directly set the command)
-		    channel.setInputStream(null);
-		    
-		    // Prepare the streams for errors and outputs
-		    InputStream in = null;
-		    InputStream err = null;
-			try {
-				in = channel.getInputStream();
-				err = ((ChannelExec)channel).getErrStream();
-			} catch (IOException e) {
-				String messaggio = "[ToolSSH] 3: Error: I/O";
-				log.error(messaggio);
-				log.error("[ToolSSH] *** EXCEPTION ***",e);
-				toReturn.put(STATUS, "KO");
-				toReturn.put(MESSAGGIO_STATUS, messaggio);
-				return toReturn;
-			}
-		    StringBuilder outStringBuilder = new StringBuilder();
-		    StringBuilder errStringBuilder = new StringBuilder();
-		    
-		    // Connecting...
-		    try {
-				channel.connect();
-			} catch (JSchException e) {
-				String messaggio = "[ToolSSH] 4: Error: Failed connection";
-				log.error(messaggio);
-				log.error("[ToolSSH] *** EXCEPTION ***",e);
-				toReturn.put(STATUS, "KO");
-				toReturn.put(MESSAGGIO_STATUS, messaggio);
-				return toReturn;
-			}
-		    
-			try {
-			    // leggo i risultati
-			    byte[] tmp = new byte[1024];
-			    byte[] tmp1 = new byte[1024];
-			    while(true) {
-			    	boolean finito = false;
-			        while(in.available()>0) {
-			        	int i = in.read(tmp, 0, 1024);
-			        	if(i < 0) break;
-			        	outStringBuilder.append(new String(tmp, 0, i));
-			        }
-			        while(err.available() > 0) {
-			        	int i = err.read(tmp1, 0, 1024);
-			        	if(i < 0) break;
-			        	errStringBuilder.append(new String(tmp1, 0, i));
-			        }
-			        if(channel.isClosed()){ 
-			        	finito = true;
-			        }
-			        if(finito) break;
-			        // This is to give the system the time to generate the output
-			        try{ 
-			        	Thread.sleep(1000);
-			        } catch(Exception ee) {}
-			    }
-			} catch (IOException e) {
-				String messaggio = "[ToolSSH] 3: Error: I/O";
-				log.error(messaggio);
-				log.error("[ToolSSH] *** EXCEPTION ***",e);
-				toReturn.put(STATUS, "KO");
-				toReturn.put(MESSAGGIO_STATUS, messaggio);
-				return toReturn;
-			}
-			
-		    // Disconnect the channel
-		    channel.disconnect();
-		    log.debug("[ToolSSH] Connection to the channel closed");
-		    // Fill the map with the data to return
-		    toReturn.put(STD_OUT, outStringBuilder.toString());
-		    toReturn.put(STD_ERR, errStringBuilder.toString());
-		    toReturn.put(STATUS, "OK");
-		    String messaggio = "0";
-		    log.info(messaggio);
-		    toReturn.put(MESSAGGIO_STATUS, messaggio);
+		Channel channel = null;
+		try {
+			channel = openChannel(host, "exec", connectTimeoutMillis);
+			log.debug("[ToolSSH] Connection channel open");
+		} catch (Exception e) {
+			return fail(toReturn, "[ToolSSH] 2: Error: Opening channel failed", e);
+		}
+		try {
+			runOnChannel((ChannelExec)channel, command, timeoutMillis, outSink, errSink, toReturn);
+		}
+		finally {
+		    // Disconnect the channel, the session goes back to the pool
+			closeChannel(channel);
 		}
 		return toReturn;
 	}
 	
 	/**
-	 * Execute a not interactive command with sudo
+	 * Execute a not interactive command with sudo on the host of the last login
 	 * @param command string of the command (do not send sudo with it)
 	 * @param sudoPassword root password
 	 * @return @return Map with standard out, standard error and status messages
-	 * with keys ToolSSH.STD_OUT ToolSSH.STD_ERR ToolSSH.STATUS and ToolSSH.MESSAGGIO_STATUS
+	 * with keys ToolSSH.STD_OUT ToolSSH.STD_ERR ToolSSH.EXIT_CODE ToolSSH.STATUS and ToolSSH.MESSAGGIO_STATUS
 	 */
 	public Map<String,String> executeSudoCommand(String command, String sudoPassword) {
+		SshHost host = defaultHost;
+		if(host==null) {
+			return notLoggedIn();
+		}
+		return executeSudoCommand(host, command, sudoPassword);
+	}
+	
+	/**
+	 * Execute a not interactive command with sudo on a session of the pool
+	 * @param host host and credentials
+	 * @param command string of the command (do not send sudo with it)
+	 * @param sudoPassword root password
+	 * @return @return Map with standard out, standard error and status messages
+	 * with keys ToolSSH.STD_OUT ToolSSH.STD_ERR ToolSSH.EXIT_CODE ToolSSH.STATUS and ToolSSH.MESSAGGIO_STATUS
+	 */
+	public Map<String,String> executeSudoCommand(SshHost host, String command, String sudoPassword) {
+		return executeSudoCommand(host, command, sudoPassword, sessionPool.getConfig().getCommandTimeoutMillis());
+	}
+	
+	/**
+	 * Execute a not interactive command with sudo on a session of the pool
+	 * The method returns as soon as the command ends
+	 * @param host host and credentials
+	 * @param command string of the command (do not send sudo with it)
+	 * @param sudoPassword root password
+	 * @param timeoutMillis maximum duration of the command, then the channel is closed and the status is KO. 0 means no limit
+	 * @return Map with standard out, standard error and status messages
+	 * with keys ToolSSH.STD_OUT ToolSSH.STD_ERR ToolSSH.EXIT_CODE ToolSSH.STATUS and ToolSSH.MESSAGGIO_STATUS
+	 */
+	public Map<String,String> executeSudoCommand(SshHost host, String command, String sudoPassword, long timeoutMillis) {
 		// initialize the map to return
-		Map<String,String> toReturn = new HashMap<String, String>();
-		toReturn.put(STD_ERR, "");
-		toReturn.put(STD_OUT, "");
-		toReturn.put(STATUS, "");
-		toReturn.put(MESSAGGIO_STATUS, "");
+		Map<String,String> toReturn = newResultMap();
 		
-		if(session.isConnected()) {
-			Channel channel = null;
-			try {
-				channel = session.openChannel("exec");
-				log.debug("[ToolSSH] Connection channel open");
-			} catch (Exception e) {
-				String messaggio = "[ToolSSH] 2: Error: Opening channel failed";
-				log.error(messaggio);
-				log.error("[ToolSSH] *** EXCEPTION ***",e);
-				toReturn.put(STATUS, "KO");
-				toReturn.put(MESSAGGIO_STATUS, messaggio);
-				return toReturn;
-			}
+		Channel channel = null;
+		try {
+			channel = openChannel(host, "exec", sessionPool.getConfig().getConnectTimeoutMillis());
+			log.debug("[ToolSSH] Connection channel open");
+		} catch (Exception e) {
+			return fail(toReturn, "[ToolSSH] 2: Error: Opening channel failed", e);
+		}
+		try {
 			// Set the command to execute
 			((ChannelExec)channel).setPty(true);
 			((ChannelExec)channel).setCommand("sudo -S -p '' "+command);
@@ -234,86 +306,878 @@ public class ToolSSH {
 				err = ((ChannelExec)channel).getErrStream();
 				out = channel.getOutputStream();
 			} catch (IOException e) {
-				String messaggio = "[ToolSSH] 3: Error: I/O";
-				log.error(messaggio);
-				log.error("[ToolSSH] *** EXCEPTION ***",e);
-				toReturn.put(STATUS, "KO");
-				toReturn.put(MESSAGGIO_STATUS, messaggio);
-				return toReturn;
+				return fail(toReturn, "[ToolSSH] 3: Error: I/O", e);
 			}
-		    StringBuilder outStringBuilder = new StringBuilder();
-		    StringBuilder errStringBuilder = new StringBuilder();
 		    
 		    // Connecting...
 		    try {
 				channel.connect();
 				// send the sudo password
-				out.write((sudoPassword+"\n").getBytes());
+				out.write((sudoPassword+"\n").getBytes(getCharset()));
 			    out.flush();
 			} catch (Exception e) {
-				String messaggio = "[ToolSSH] 4: Error: Connection failed";
-				log.error(messaggio);
-				log.error("[ToolSSH] *** EXCEPTION ***",e);
-				toReturn.put(STATUS, "KO");
-				toReturn.put(MESSAGGIO_STATUS, messaggio);
-				return toReturn;
+				return fail(toReturn, "[ToolSSH] 4: Error: Connection failed", e);
 			}
 		    
+			Charset charset = getCharset();
+			TextSink outText = SshOutputSink.forText(charset);
+			TextSink errText = SshOutputSink.forText(charset);
+			readOutput((ChannelExec)channel, in, err, outText, errText, timeoutMillis, toReturn);
+			toReturn.put(STD_OUT, outText.getText());
+			toReturn.put(STD_ERR, errText.getText());
+		}
+		finally {
+		    // Disconnect the channel, the session goes back to the pool
+			closeChannel(channel);
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Executes a list of commands with sudo on the host of the last login, in one root shell
+	 * @param commands commands in order (do not send sudo with them)
+	 * @param sudoPassword password for sudo, it is overwritten with zeros
+	 * @param timeoutMillis maximum duration of the whole batch. 0 means no limit
+	 * @return a Map for every command, with keys ToolSSH.STD_OUT ToolSSH.STD_ERR ToolSSH.EXIT_CODE ToolSSH.STATUS and ToolSSH.MESSAGGIO_STATUS
+	 */
+	public List<Map<String,String>> executeSudoCommands(List<String> commands, char[] sudoPassword, long timeoutMillis) {
+		SshHost host = defaultHost;
+		if(host==null) {
+			Arrays.fill(sudoPassword, '\0');
+			List<Map<String,String>> toReturn = new ArrayList<Map<String,String>>();
+			for (int i = 0; i < commands.size(); i++) {
+				toReturn.add(notLoggedIn());
+			}
+			return toReturn;
+		}
+		return executeSudoCommands(host, commands, sudoPassword, timeoutMillis);
+	}
+	
+	/**
+	 * Executes a list of commands with sudo on a session of the pool, in one root shell: the password is sent
+	 * only once, then the commands are written on the standard input of the shell, separated by markers
+	 * giving the output and the exit code of each one. The shell keeps its state between the commands (ie: cd, variables).
+	 * The commands read their input from /dev/null. A command ending the shell (ie: exit 1) stops the batch,
+	 * the following ones are KO. sudo must not require a tty, standard out and standard error are kept separate
+	 * @param host host and credentials
+	 * @param commands commands in order (do not send sudo with them)
+	 * @param sudoPassword password for sudo, it is overwritten with zeros as soon as it has been sent
+	 * @param timeoutMillis maximum duration of the whole batch. 0 means no limit
+	 * @return a Map for every command, with keys ToolSSH.STD_OUT ToolSSH.STD_ERR ToolSSH.EXIT_CODE ToolSSH.STATUS and ToolSSH.MESSAGGIO_STATUS
+	 */
+	public List<Map<String,String>> executeSudoCommands(SshHost host, List<String> commands, char[] sudoPassword, long timeoutMillis) {
+		long deadline = timeoutMillis>0 ? System.currentTimeMillis()+timeoutMillis : Long.MAX_VALUE;
+		SudoBatch batch = new SudoBatch(commands, getCharset());
+		String failure = null;
+		Exception error = null;
+		boolean completed = false;
+		int exitStatus = -1;
+		Channel channel = null;
+		Future<Long> outFuture = null;
+		Future<Long> errFuture = null;
+		try {
+			channel = openChannel(host, "exec", sessionPool.getConfig().getConnectTimeoutMillis());
+			((ChannelExec)channel).setCommand(batch.getShellCommand());
+			InputStream in = channel.getInputStream();
+			InputStream err = ((ChannelExec)channel).getErrStream();
+			OutputStream out = channel.getOutputStream();
+			channel.connect();
+			outFuture = readerExecutor.submit(new OutputReader(in, batch.getOutSink()));
+			errFuture = readerExecutor.submit(new OutputReader(err, batch.getErrSink()));
+			
+			SudoBatch.Start start = batch.awaitStart(deadline);
+			if(start==SudoBatch.Start.PASSWORD) {
+				batch.sendPassword(out, sudoPassword);
+				start = batch.awaitReady(deadline);
+			}
+			if(start==SudoBatch.Start.READY) {
+				out.write(batch.getScript());
+				// EOF: on a syntax error sh stops at the end of the script instead of waiting for more input
+				out.close();
+				await(outFuture, deadline);
+				await(errFuture, deadline);
+				awaitClose(channel, deadline);
+				completed = true;
+				exitStatus = channel.getExitStatus();
+			}
+			else if(start==SudoBatch.Start.TIMEOUT) {
+				failure = "[ToolSSH] 5: Error: Timeout after "+timeoutMillis+" ms";
+			}
+			else {
+				failure = "[ToolSSH] 9: Error: sudo authentication failed";
+			}
+		} catch (JSchException e) {
+			failure = "[ToolSSH] 2: Error: Opening channel failed";
+			error = e;
+		} catch (IOException e) {
+			failure = "[ToolSSH] 3: Error: I/O";
+			error = e;
+		} catch (TimeoutException e) {
+			// the results are taken from the sinks after the readers have stopped
+			channel.disconnect();
+			awaitReaders(outFuture, errFuture);
+			failure = "[ToolSSH] 5: Error: Timeout after "+timeoutMillis+" ms";
+			error = e;
+		} catch (ExecutionException e) {
+			failure = "[ToolSSH] 3: Error: I/O";
+			error = e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure = "[ToolSSH] 6: Error: Interrupted";
+			error = e;
+		}
+		finally {
+			Arrays.fill(sudoPassword, '\0');
+			if(outFuture!=null) {
+				outFuture.cancel(true);
+			}
+			if(errFuture!=null) {
+				errFuture.cancel(true);
+			}
+			closeChannel(channel);
+		}
+		if(failure!=null) {
+			log.error(failure);
+			if(error!=null) {
+				log.error("[ToolSSH] *** EXCEPTION ***",error);
+			}
+		}
+		else {
+			log.info("[ToolSSH] sudo batch of "+commands.size()+" commands ended with exit status "+exitStatus);
+		}
+		return batch.getResults(completed, exitStatus, failure);
+	}
+	
+	/**
+	 * Executes many commands at the same time on the host of the last login, over one session
+	 * @param commands commands, each one runs on its own channel
+	 * @param timeoutMillis maximum duration of every command. 0 means no limit
+	 * @return a Future for every command, in the same order, giving the same Map of executeCommand
+	 */
+	public List<Future<Map<String,String>>> submitCommands(List<String> commands, long timeoutMillis) {
+		SshHost host = defaultHost;
+		if(host==null) {
+			List<Future<Map<String,String>>> toReturn = new ArrayList<Future<Map<String,String>>>();
+			for (int i = 0; i < commands.size(); i++) {
+				toReturn.add(completed(notLoggedIn()));
+			}
+			return toReturn;
+		}
+		return submitCommands(host, commands, timeoutMillis);
+	}
+	
+	/**
+	 * Executes many commands at the same time over one session of the pool, each one on its own channel,
+	 * so there is only one connection and one key exchange. At most SshPoolConfig.maxChannelsPerSession
+	 * commands run together, the others wait for a free channel. The session goes back to the pool after the last command
+	 * @param host host and credentials
+	 * @param commands commands, each one runs on its own channel
+	 * @param timeoutMillis maximum duration of every command. 0 means no limit
+	 * @return a Future for every command, in the same order, giving the same Map of executeCommand
+	 */
+	public List<Future<Map<String,String>>> submitCommands(SshHost host, List<String> commands, long timeoutMillis) {
+		List<Future<Map<String,String>>> toReturn = new ArrayList<Future<Map<String,String>>>();
+		if(commands.isEmpty()) {
+			return toReturn;
+		}
+		Session session = null;
+		try {
+			session = sessionPool.borrowSession(host);
+		} catch (JSchException e) {
+			Map<String,String> failure = fail(newResultMap(), "[ToolSSH] 2: Error: Opening channel failed", e);
+			for (int i = 0; i < commands.size(); i++) {
+				toReturn.add(completed(new HashMap<String,String>(failure)));
+			}
+			return toReturn;
+		}
+		SharedSession shared = new SharedSession(session, commands.size());
+		int channels = Math.max(1, Math.min(sessionPool.getConfig().getMaxChannelsPerSession(), commands.size()));
+		ExecutorService executor = Executors.newFixedThreadPool(channels, daemonThreads("ToolSSH-channel-"));
+		for(String command : commands) {
+			ChannelCommandTask task = new ChannelCommandTask(new ChannelCommand(shared, command, timeoutMillis));
+			executor.execute(task);
+			toReturn.add(task);
+		}
+		// the threads end after the last command
+		executor.shutdown();
+		return toReturn;
+	}
+	
+	/**
+	 * Executes the same command on many hosts at the same time and returns immediately.
+	 * The result of every host can be taken from the CompletionService as soon as it is ready,
+	 * call take() once for every host
+	 * @param hosts hosts and credentials
+	 * @param command command
+	 * @param parallelism maximum number of hosts running the command at the same time
+	 * @param connectTimeoutMillis timeout of the connection to a host
+	 * @param timeoutMillis maximum duration of the command on a host. 0 means no limit
+	 * @return the results, in order of completion
+	 */
+	public CompletionService<SshHostResult> submitCommandOnHosts(List<SshHost> hosts, String command, int parallelism, int connectTimeoutMillis, long timeoutMillis) {
+		ExecutorService executor = newFanOutExecutor(parallelism, hosts.size());
+		CompletionService<SshHostResult> toReturn = new ExecutorCompletionService<SshHostResult>(executor);
+		for(SshHost host : hosts) {
+			toReturn.submit(new HostCommand(host, command, connectTimeoutMillis, timeoutMillis));
+		}
+		// the threads end after the last host
+		executor.shutdown();
+		return toReturn;
+	}
+	
+	/**
+	 * Executes the same command on many hosts at the same time and waits for all of them
+	 * @param hosts hosts and credentials
+	 * @param command command
+	 * @param parallelism maximum number of hosts running the command at the same time
+	 * @param connectTimeoutMillis timeout of the connection to a host
+	 * @param timeoutMillis maximum duration of the command on a host. 0 means no limit
+	 * @return the results, in the order of the hosts
+	 */
+	public List<SshHostResult> executeCommandOnHosts(List<SshHost> hosts, String command, int parallelism, int connectTimeoutMillis, long timeoutMillis) {
+		List<SshHostResult> toReturn = new ArrayList<SshHostResult>();
+		ExecutorService executor = newFanOutExecutor(parallelism, hosts.size());
+		try {
+			List<Future<SshHostResult>> futures = new ArrayList<Future<SshHostResult>>();
+			for(SshHost host : hosts) {
+				futures.add(executor.submit(new HostCommand(host, command, connectTimeoutMillis, timeoutMillis)));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					toReturn.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					// HostCommand does not throw
+					toReturn.add(new SshHostResult(hosts.get(i), fail(newResultMap(), "[ToolSSH] 7: Error: Unexpected failure", e), System.currentTimeMillis(), 0));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					executor.shutdownNow();
+					for (int j = i; j < futures.size(); j++) {
+						toReturn.add(new SshHostResult(hosts.get(j), fail(newResultMap(), "[ToolSSH] 6: Error: Interrupted", e), System.currentTimeMillis(), 0));
+					}
+					break;
+				}
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Uploads a file with SFTP on the host of the last login
+	 * @param localPath path of the local file
+	 * @param remotePath path of the remote file, ie: /opt/app/app.war
+	 * @param transferConfig options of the transfer. null for the default ones
+	 * @return result of the transfer with the throughput. Check isSuccess
+	 */
+	public SshTransferResult upload(String localPath, String remotePath, SshTransferConfig transferConfig) {
+		SshHost host = defaultHost;
+		if(host==null) {
+			return notLoggedIn(new SshTransferResult(localPath, remotePath));
+		}
+		return upload(host, localPath, remotePath, transferConfig);
+	}
+	
+	/**
+	 * Uploads a file with SFTP on a session of the pool. The file is read from a FileChannel in chunks
+	 * and the writes are sent without waiting for the answer of the previous ones
+	 * @param host host and credentials
+	 * @param localPath path of the local file
+	 * @param remotePath path of the remote file, ie: /opt/app/app.war
+	 * @param transferConfig options of the transfer. null for the default ones
+	 * @return result of the transfer with the throughput. Check isSuccess
+	 */
+	public SshTransferResult upload(SshHost host, String localPath, String remotePath, SshTransferConfig transferConfig) {
+		SshTransferConfig config = transferConfig!=null ? transferConfig : new SshTransferConfig();
+		SshTransferResult toReturn = new SshTransferResult(localPath, remotePath);
+		long start = System.currentTimeMillis();
+		FileChannel file = null;
+		Channel channel = null;
+		try {
+			file = FileChannel.open(Paths.get(localPath), StandardOpenOption.READ);
+			long size = file.size();
+			toReturn.setSize(size);
+			channel = openChannel(host, "sftp", sessionPool.getConfig().getConnectTimeoutMillis());
+			channel.connect();
+			ChannelSftp sftp = (ChannelSftp) channel;
+			long offset = 0;
+			if(config.isResume()) {
+				offset = remoteSize(sftp, remotePath);
+				if(offset>size) {
+					offset = 0;
+				}
+			}
+			toReturn.setOffset(offset);
+			ByteBuffer buffer = ByteBuffer.allocate(Math.max(1024, config.getChunkSize()));
+			MessageDigest digest = config.isVerifyChecksum() ? MessageDigest.getInstance("SHA-256") : null;
+			if(digest!=null) {
+				digestFile(file, offset, digest, buffer);
+			}
+			// RESUME appends to the remote file, which is offset bytes long
+			OutputStream out = sftp.put(remotePath, null, offset>0 ? ChannelSftp.RESUME : ChannelSftp.OVERWRITE, 0);
+			long position = offset;
+			while(position<size) {
+				buffer.clear();
+				int read = file.read(buffer, position);
+				if(read<0) {
+					break;
+				}
+				out.write(buffer.array(), 0, read);
+				if(digest!=null) {
+					digest.update(buffer.array(), 0, read);
+				}
+				position += read;
+				toReturn.addBytesTransferred(read);
+			}
+			// waits for the answers of the last writes
+			out.close();
+			closeChannel(channel);
+			channel = null;
+			toReturn.setDurationMillis(System.currentTimeMillis()-start);
+			if(digest!=null) {
+				toReturn.setChecksum(verifyChecksum(host, remotePath, digest));
+			}
+			log.info("[ToolSSH] Upload completed: "+toReturn);
+		} catch (Exception e) {
+			transferFailed(toReturn, start, e);
+		}
+		finally {
+			closeFile(file);
+			closeChannel(channel);
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Downloads a file with SFTP from the host of the last login
+	 * @param remotePath path of the remote file, ie: /var/log/app.log
+	 * @param localPath path of the local file, it is overwritten (or continued with the resume option)
+	 * @param transferConfig options of the transfer. null for the default ones
+	 * @return result of the transfer with the throughput. Check isSuccess
+	 */
+	public SshTransferResult download(String remotePath, String localPath, SshTransferConfig transferConfig) {
+		SshHost host = defaultHost;
+		if(host==null) {
+			return notLoggedIn(new SshTransferResult(remotePath, localPath));
+		}
+		return download(host, remotePath, localPath, transferConfig);
+	}
+	
+	/**
+	 * Downloads a file with SFTP from a session of the pool. Many read requests are sent
+	 * without waiting for the answers (SshTransferConfig.bulkRequests), the file is written with a FileChannel
+	 * @param host host and credentials
+	 * @param remotePath path of the remote file, ie: /var/log/app.log
+	 * @param localPath path of the local file, it is overwritten (or continued with the resume option)
+	 * @param transferConfig options of the transfer. null for the default ones
+	 * @return result of the transfer with the throughput. Check isSuccess
+	 */
+	public SshTransferResult download(SshHost host, String remotePath, String localPath, SshTransferConfig transferConfig) {
+		SshTransferConfig config = transferConfig!=null ? transferConfig : new SshTransferConfig();
+		SshTransferResult toReturn = new SshTransferResult(remotePath, localPath);
+		long start = System.currentTimeMillis();
+		FileChannel file = null;
+		Channel channel = null;
+		try {
+			channel = openChannel(host, "sftp", sessionPool.getConfig().getConnectTimeoutMillis());
+			channel.connect();
+			ChannelSftp sftp = (ChannelSftp) channel;
+			sftp.setBulkRequests(Math.max(1, config.getBulkRequests()));
+			long size = sftp.stat(remotePath).getSize();
+			toReturn.setSize(size);
+			file = FileChannel.open(Paths.get(localPath), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			long offset = 0;
+			if(config.isResume()) {
+				offset = file.size();
+				if(offset>size) {
+					offset = 0;
+				}
+			}
+			file.truncate(offset);
+			toReturn.setOffset(offset);
+			ByteBuffer buffer = ByteBuffer.allocate(Math.max(1024, config.getChunkSize()));
+			MessageDigest digest = config.isVerifyChecksum() ? MessageDigest.getInstance("SHA-256") : null;
+			if(digest!=null) {
+				digestFile(file, offset, digest, buffer);
+			}
+			InputStream in = sftp.get(remotePath, null, offset);
 			try {
-			    // read the results
-			    byte[] tmp = new byte[1024];
-			    byte[] tmp1 = new byte[1024];
-			    while(true) {
-			    	boolean finito = false;
-			        while(in.available()>0) {
-			        	int i = in.read(tmp, 0, 1024);
-			        	if(i < 0) break;
-			        	outStringBuilder.append(new String(tmp, 0, i));
-			        }
-			        while(err.available() > 0) {
-			        	int i = err.read(tmp1, 0, 1024);
-			        	if(i < 0) break;
-			        	errStringBuilder.append(new String(tmp1, 0, i));
-			        }
-			        if(channel.isClosed()){ 
-			        	finito = true;
-			        }
-			        if(finito) break;
-			        // This is to give the system the time to generate the output
-			        try{ 
-			        	Thread.sleep(1000);
-			        } catch(Exception ee) {}
-			    }
-			} catch (IOException e) {
-				String messaggio = "[ToolSSH] 3: Error: I/O";
-				log.error(messaggio);
-				log.error("[ToolSSH] *** EXCEPTION ***",e);
-				toReturn.put(STATUS, "KO");
-				toReturn.put(MESSAGGIO_STATUS, messaggio);
-				return toReturn;
+				long position = offset;
+				int read;
+				while((read = in.read(buffer.array(), 0, buffer.capacity()))>=0) {
+					buffer.clear();
+					buffer.limit(read);
+					while(buffer.hasRemaining()) {
+						position += file.write(buffer, position);
+					}
+					if(digest!=null) {
+						digest.update(buffer.array(), 0, read);
+					}
+					toReturn.addBytesTransferred(read);
+				}
+			}
+			finally {
+				in.close();
+			}
+			closeChannel(channel);
+			channel = null;
+			toReturn.setDurationMillis(System.currentTimeMillis()-start);
+			if(digest!=null) {
+				toReturn.setChecksum(verifyChecksum(host, remotePath, digest));
 			}
+			log.info("[ToolSSH] Download completed: "+toReturn);
+		} catch (Exception e) {
+			transferFailed(toReturn, start, e);
+		}
+		finally {
+			closeFile(file);
+			closeChannel(channel);
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * Disconnect the sessions of the pool and forget the host of the last login. Always call this when finished
+	 */
+	public void disconnect() {
+		defaultHost = null;
+		sessionPool.close();
+		log.info("Session terminated");
+	}
+	
+	/**
+	 * Borrows a session and opens a channel on it. If the pooled session is dead,
+	 * it is discarded and the channel is opened on a new one
+	 */
+	private Channel openChannel(SshHost host, String type, int connectTimeoutMillis) throws JSchException {
+		Session session = sessionPool.borrowSession(host, connectTimeoutMillis);
+		try {
+			return session.openChannel(type);
+		} catch (JSchException e) {
+			log.warn("[ToolSSH] Session to "+host+" not usable, reconnecting: "+e.getMessage());
+			sessionPool.invalidateSession(session);
+		} catch (RuntimeException e) {
+			sessionPool.invalidateSession(session);
+			throw e;
+		}
+		session = sessionPool.borrowSession(host, connectTimeoutMillis);
+		try {
+			return session.openChannel(type);
+		} catch (JSchException e) {
+			sessionPool.invalidateSession(session);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Sends the command on a channel not yet connected and reads its output
+	 */
+	private Map<String,String> runOnChannel(ChannelExec channel, String command, long timeoutMillis, SshOutputSink outSink, SshOutputSink errSink, Map<String,String> toReturn) {
+		// Command to execute
+		channel.setCommand(command);
+		
+		// INPUT STREAM (directly set the command)
+	    channel.setInputStream(null);
+	    
+	    // Prepare the streams for errors and outputs
+	    InputStream in = null;
+	    InputStream err = null;
+		try {
+			in = channel.getInputStream();
+			err = channel.getErrStream();
+		} catch (IOException e) {
+			return fail(toReturn, "[ToolSSH] 3: Error: I/O", e);
+		}
+	    
+	    // Connecting...
+	    try {
+			channel.connect();
+		} catch (JSchException e) {
+			return fail(toReturn, "[ToolSSH] 4: Error: Failed connection", e);
+		}
+	    
+		readOutput(channel, in, err, outSink, errSink, timeoutMillis, toReturn);
+		return toReturn;
+	}
+	
+	/**
+	 * Copies standard out and standard error of a connected channel to the sinks with a thread each, until the end
+	 * of the streams or the timeout, then fills the map with the exit status of the command
+	 */
+	private Map<String,String> readOutput(ChannelExec channel, InputStream in, InputStream err, SshOutputSink outSink, SshOutputSink errSink, long timeoutMillis, Map<String,String> toReturn) {
+		long deadline = timeoutMillis>0 ? System.currentTimeMillis()+timeoutMillis : Long.MAX_VALUE;
+		Future<Long> outFuture = readerExecutor.submit(new OutputReader(in, outSink));
+		Future<Long> errFuture = readerExecutor.submit(new OutputReader(err, errSink));
+		try {
+			await(outFuture, deadline);
+			await(errFuture, deadline);
+			awaitClose(channel, deadline);
 			
-		    // Disconnect the channel
-		    channel.disconnect();
-		    log.debug("[ToolSSH] Connection to the channel closed");
 		    // Fill the map with the data to return
-		    toReturn.put(STD_OUT, outStringBuilder.toString());
-		    toReturn.put(STD_ERR, errStringBuilder.toString());
+		    toReturn.put(EXIT_CODE, String.valueOf(channel.getExitStatus()));
 		    toReturn.put(STATUS, "OK");
 		    String messaggio = "0";
 		    log.info(messaggio);
 		    toReturn.put(MESSAGGIO_STATUS, messaggio);
+		} catch (TimeoutException e) {
+			// closing the channel ends the streams, the sinks keep the output read so far
+			channel.disconnect();
+			awaitReaders(outFuture, errFuture);
+			fail(toReturn, "[ToolSSH] 5: Error: Timeout after "+timeoutMillis+" ms", e);
+		} catch (ExecutionException e) {
+			fail(toReturn, "[ToolSSH] 3: Error: I/O", e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fail(toReturn, "[ToolSSH] 6: Error: Interrupted", e);
+		}
+		finally {
+			outFuture.cancel(true);
+			errFuture.cancel(true);
 		}
 		return toReturn;
 	}
 	
 	/**
-	 * Disconnect the session. Always call this when finished
+	 * The exit status comes with the end of the streams, the channel is closed right after
 	 */
-	public void disconnect() {
-		if(session.isConnected()) {
-			session.disconnect();
-			log.info("Session terminated");
+	private static void awaitClose(Channel channel, long deadline) throws InterruptedException {
+		long exitDeadline = Math.min(deadline, System.currentTimeMillis()+EXIT_STATUS_WAIT_MILLIS);
+		while(!channel.isClosed() && System.currentTimeMillis()<exitDeadline) {
+			Thread.sleep(EXIT_STATUS_POLL_MILLIS);
+		}
+	}
+	
+	/**
+	 * Waits up to EXIT_STATUS_WAIT_MILLIS for the readers of a closed channel, so they don't write
+	 * to the sinks any more when the caller reads them
+	 */
+	private static void awaitReaders(Future<?>... readers) {
+		long deadline = System.currentTimeMillis()+EXIT_STATUS_WAIT_MILLIS;
+		for(Future<?> reader : readers) {
+			if(reader==null) {
+				continue;
+			}
+			try {
+				await(reader, deadline);
+			} catch (ExecutionException e) {
+				// the stream was closed under the reader
+			} catch (TimeoutException e) {
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+	
+	private static <T> T await(Future<T> future, long deadline) throws InterruptedException, ExecutionException, TimeoutException {
+		if(deadline==Long.MAX_VALUE) {
+			return future.get();
+		}
+		return future.get(Math.max(1L, deadline-System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * @return size of the remote file, 0 if it does not exist
+	 */
+	private static long remoteSize(ChannelSftp sftp, String remotePath) {
+		try {
+			return sftp.stat(remotePath).getSize();
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+	
+	/**
+	 * Adds the first bytes of the file to the digest, when a transfer is resumed
+	 */
+	private static void digestFile(FileChannel file, long length, MessageDigest digest, ByteBuffer buffer) throws IOException {
+		long position = 0;
+		while(position<length) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), length-position));
+			int read = file.read(buffer, position);
+			if(read<0) {
+				break;
+			}
+			digest.update(buffer.array(), 0, read);
+			position += read;
+		}
+	}
+	
+	/**
+	 * Compares the digest of the transferred file with the one computed by sha256sum on the host
+	 * @return SHA-256 in hexadecimal
+	 * @throws IOException if they are different or the remote one can't be computed
+	 */
+	private String verifyChecksum(SshHost host, String remotePath, MessageDigest digest) throws IOException {
+		String toReturn = String.format("%064x", new BigInteger(1, digest.digest()));
+		Map<String,String> result = executeCommand(host, "sha256sum '"+remotePath.replace("'", "'\\''")+"'");
+		String out = result.get(STD_OUT).trim();
+		String remote = out.isEmpty() ? "" : out.split("\\s+")[0];
+		if(!"0".equals(result.get(EXIT_CODE)) || !toReturn.equalsIgnoreCase(remote)) {
+			throw new IOException("Checksum of "+remotePath+" not verified, local "+toReturn+" remote "
+					+(remote.isEmpty() ? result.get(STD_ERR).trim()+" "+result.get(MESSAGGIO_STATUS) : remote));
+		}
+		return toReturn;
+	}
+	
+	private static void transferFailed(SshTransferResult toReturn, long start, Exception e) {
+		toReturn.setDurationMillis(System.currentTimeMillis()-start);
+		toReturn.setError(e);
+		log.error("[ToolSSH] Transfer failed: "+toReturn);
+		log.error("[ToolSSH] *** EXCEPTION ***",e);
+	}
+	
+	private static void closeFile(FileChannel file) {
+		try {
+			if(file!=null) {
+				file.close();
+			}
+		} catch (IOException e) {
+			log.error("[ToolSSH] *** EXCEPTION ***",e);
+		}
+	}
+	
+	private static Future<Map<String,String>> completed(final Map<String,String> result) {
+		FutureTask<Map<String,String>> toReturn = new FutureTask<Map<String,String>>(new Callable<Map<String,String>>() {
+			@Override
+			public Map<String,String> call() {
+				return result;
+			}
+		});
+		toReturn.run();
+		return toReturn;
+	}
+	
+	private static ExecutorService newFanOutExecutor(int parallelism, int hosts) {
+		return Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, hosts)), daemonThreads("ToolSSH-fanout-"));
+	}
+	
+	private static ThreadFactory daemonThreads(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix+count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+	
+	private Charset getCharset() {
+		return Charset.forName(sessionPool.getConfig().getCharset());
+	}
+	
+	/**
+	 * Disconnects the channel and gives its session back to the pool
+	 */
+	private void closeChannel(Channel channel) {
+		if(channel==null) {
+			return;
+		}
+		Session session = null;
+		try {
+			session = channel.getSession();
+		} catch (JSchException e) {
+			log.error("[ToolSSH] *** EXCEPTION ***",e);
+		}
+		channel.disconnect();
+		log.debug("[ToolSSH] Connection to the channel closed");
+		sessionPool.releaseSession(session);
+	}
+	
+	private static Map<String,String> newResultMap() {
+		Map<String,String> toReturn = new HashMap<String, String>();
+		toReturn.put(STD_ERR, "");
+		toReturn.put(STD_OUT, "");
+		toReturn.put(EXIT_CODE, "-1");
+		toReturn.put(STATUS, "");
+		toReturn.put(MESSAGGIO_STATUS, "");
+		return toReturn;
+	}
+	
+	private static Map<String,String> fail(Map<String,String> toReturn, String messaggio, Exception e) {
+		log.error(messaggio);
+		log.error("[ToolSSH] *** EXCEPTION ***",e);
+		toReturn.put(STATUS, "KO");
+		toReturn.put(MESSAGGIO_STATUS, messaggio);
+		return toReturn;
+	}
+	
+	private static SshTransferResult notLoggedIn(SshTransferResult toReturn) {
+		String messaggio = "[ToolSSH] 1: Error: Not logged in";
+		log.error(messaggio);
+		toReturn.setError(new IllegalStateException(messaggio));
+		return toReturn;
+	}
+	
+	private static Map<String,String> notLoggedIn() {
+		Map<String,String> toReturn = newResultMap();
+		String messaggio = "[ToolSSH] 1: Error: Not logged in";
+		log.error(messaggio);
+		toReturn.put(STATUS, "KO");
+		toReturn.put(MESSAGGIO_STATUS, messaggio);
+		return toReturn;
+	}
+	
+	/**
+	 * Session borrowed by submitCommands, given back to the pool by the last command
+	 */
+	private class SharedSession {
+		private final Session session;
+		private final AtomicInteger remaining;
+		private volatile boolean broken = false;
+		
+		private SharedSession(Session session, int commands) {
+			this.session = session;
+			this.remaining = new AtomicInteger(commands);
+		}
+		
+		private void commandDone() {
+			if(remaining.decrementAndGet()==0) {
+				if(broken || !session.isConnected()) {
+					sessionPool.invalidateSession(session);
+				}
+				else {
+					sessionPool.releaseSession(session);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Future of a command of submitCommands. A command cancelled before it starts gives its part of the session back here,
+	 * a started one at its end
+	 */
+	private static class ChannelCommandTask extends FutureTask<Map<String,String>> {
+		private final ChannelCommand command;
+		
+		private ChannelCommandTask(ChannelCommand command) {
+			super(command);
+			this.command = command;
+		}
+		
+		@Override
+		protected void done() {
+			if(command.claim()) {
+				command.shared.commandDone();
+			}
+		}
+	}
+	
+	/**
+	 * Command of submitCommands, on its own channel of the shared session. It never throws, the errors are in the result
+	 */
+	private class ChannelCommand implements Callable<Map<String,String>> {
+		private final SharedSession shared;
+		private final String command;
+		private final long timeoutMillis;
+		private final AtomicBoolean claimed = new AtomicBoolean(false);
+		
+		private ChannelCommand(SharedSession shared, String command, long timeoutMillis) {
+			this.shared = shared;
+			this.command = command;
+			this.timeoutMillis = timeoutMillis;
+		}
+		
+		/**
+		 * @return true only the first time: who gets it calls commandDone
+		 */
+		private boolean claim() {
+			return claimed.compareAndSet(false, true);
+		}
+		
+		@Override
+		public Map<String,String> call() {
+			Map<String,String> toReturn = newResultMap();
+			if(!claim()) {
+				// cancelled before starting, the session was already given back
+				toReturn.put(STATUS, "KO");
+				toReturn.put(MESSAGGIO_STATUS, "[ToolSSH] 8: Error: Command not executed");
+				return toReturn;
+			}
+			Charset charset = getCharset();
+			TextSink outText = SshOutputSink.forText(charset);
+			TextSink errText = SshOutputSink.forText(charset);
+			Channel channel = null;
+			try {
+				channel = shared.session.openChannel("exec");
+				runOnChannel((ChannelExec)channel, command, timeoutMillis, outText, errText, toReturn);
+				toReturn.put(STD_OUT, outText.getText());
+				toReturn.put(STD_ERR, errText.getText());
+			} catch (JSchException e) {
+				shared.broken = true;
+				fail(toReturn, "[ToolSSH] 2: Error: Opening channel failed", e);
+			} catch (RuntimeException e) {
+				fail(toReturn, "[ToolSSH] 7: Error: Unexpected failure", e);
+			}
+			finally {
+				if(channel!=null) {
+					channel.disconnect();
+				}
+				shared.commandDone();
+			}
+			return toReturn;
+		}
+	}
+	
+	/**
+	 * Command of executeCommandOnHosts on one host. It never throws, the errors are in the result
+	 */
+	private class HostCommand implements Callable<SshHostResult> {
+		private final SshHost host;
+		private final String command;
+		private final int connectTimeoutMillis;
+		private final long timeoutMillis;
+		
+		private HostCommand(SshHost host, String command, int connectTimeoutMillis, long timeoutMillis) {
+			this.host = host;
+			this.command = command;
+			this.connectTimeoutMillis = connectTimeoutMillis;
+			this.timeoutMillis = timeoutMillis;
+		}
+		
+		@Override
+		public SshHostResult call() {
+			long start = System.currentTimeMillis();
+			Map<String,String> result;
+			try {
+				result = executeCommand(host, command, connectTimeoutMillis, timeoutMillis);
+			} catch (RuntimeException e) {
+				result = fail(newResultMap(), "[ToolSSH] 7: Error: Unexpected failure", e);
+			}
+			return new SshHostResult(host, result, start, System.currentTimeMillis()-start);
+		}
+	}
+	
+	/**
+	 * Copies a stream of a channel to a sink until its end, through a buffer reused by the thread
+	 */
+	private static class OutputReader implements Callable<Long> {
+		private final InputStream stream;
+		private final SshOutputSink sink;
+		
+		private OutputReader(InputStream stream, SshOutputSink sink) {
+			this.stream = stream;
+			this.sink = sink;
+		}
+		
+		@Override
+		public Long call() throws IOException {
+			byte[] buffer = READ_BUFFER.get();
+			long toReturn = 0;
+			int read;
+			while((read = stream.read(buffer))>=0) {
+				if(read>0) {
+					sink.write(buffer, 0, read);
+					toReturn += read;
+				}
+			}
+			sink.finish();
+			return toReturn;
 		}
 	}
 }